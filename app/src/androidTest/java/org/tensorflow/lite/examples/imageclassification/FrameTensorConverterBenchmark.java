@@ -0,0 +1,93 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.tensorflow.lite.support.image.ImageProcessor;
+import org.tensorflow.lite.support.image.TensorImage;
+import org.tensorflow.lite.support.image.ops.ResizeOp;
+import org.tensorflow.lite.support.image.ops.ResizeWithCropOrPadOp;
+import org.tensorflow.lite.support.image.ops.Rot90Op;
+
+/**
+ * Instrumented benchmark comparing the cost of turning one 640x480 RGBA camera frame into a
+ * 224x224 RGB input, through a Bitmap and the support library's ImageProcessor (the previous
+ * classify() path) against the frame pool copy and FrameTensorConverter. Results are written
+ * to logcat under the "FrameTensorBenchmark" tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FrameTensorConverterBenchmark {
+    private static final String TAG = "FrameTensorBenchmark";
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int INPUT_SIZE = 224;
+    private static final int ROTATION = 90;
+    private static final int WARMUP_FRAMES = 20;
+    private static final int FRAMES = 200;
+
+    @Test
+    public void fusedConversionShouldBeCheaperThanBitmapPath() {
+        ByteBuffer plane = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 4);
+        for (int i = 0; i < plane.capacity(); i++) {
+            plane.put(i, (byte) (i * 31));
+        }
+
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        ImageProcessor imageProcessor = new ImageProcessor.Builder()
+                .add(new ResizeWithCropOrPadOp(HEIGHT, HEIGHT))
+                .add(new ResizeOp(INPUT_SIZE, INPUT_SIZE, ResizeOp.ResizeMethod.BILINEAR))
+                .add(new Rot90Op(-ROTATION / 90))
+                .build();
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            convertWithBitmap(plane, bitmap, imageProcessor);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < FRAMES; i++) {
+            convertWithBitmap(plane, bitmap, imageProcessor);
+        }
+        long bitmapNanos = (System.nanoTime() - start) / FRAMES;
+
+        // One frame is the latest, the other is written
+        FramePool framePool = new FramePool(2);
+        FrameTensorConverter converter = new FrameTensorConverter(INPUT_SIZE, INPUT_SIZE);
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            convertFused(plane, framePool, converter);
+        }
+        start = System.nanoTime();
+        for (int i = 0; i < FRAMES; i++) {
+            convertFused(plane, framePool, converter);
+        }
+        long fusedNanos = (System.nanoTime() - start) / FRAMES;
+
+        Log.i(TAG, WIDTH + "x" + HEIGHT + " to " + INPUT_SIZE + "x" + INPUT_SIZE
+                + ", cost per frame: bitmap " + bitmapNanos / 1000 + " us, fused " + fusedNanos / 1000 + " us");
+        assertTrue(fusedNanos < bitmapNanos);
+    }
+
+    private static void convertWithBitmap(ByteBuffer plane, Bitmap bitmap, ImageProcessor imageProcessor) {
+        plane.rewind();
+        bitmap.copyPixelsFromBuffer(plane);
+        TensorImage tensorImage = imageProcessor.process(TensorImage.fromBitmap(bitmap));
+        // The Task Library reads the pixels as bytes
+        tensorImage.getBuffer();
+    }
+
+    private static void convertFused(ByteBuffer plane, FramePool framePool, FrameTensorConverter converter) {
+        plane.rewind();
+        FramePool.Frame frame = framePool.acquireForWrite(WIDTH, HEIGHT, WIDTH * 4, plane.remaining());
+        frame.copyFrom(plane);
+        framePool.publish(frame, ROTATION, 0);
+        FramePool.Frame latest = framePool.acquireLatest();
+        converter.convert(latest.getPixels(), latest.getWidth(), latest.getHeight(), latest.getRowStride(),
+                latest.getRotation());
+        framePool.release(latest);
+    }
+}
@@ -0,0 +1,134 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.os.Debug;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.support.image.ColorSpaceType;
+import org.tensorflow.lite.support.image.TensorImage;
+import org.tensorflow.lite.support.tensorbuffer.TensorBuffer;
+import org.tensorflow.lite.task.core.BaseOptions;
+import org.tensorflow.lite.task.core.vision.ImageProcessingOptions;
+import org.tensorflow.lite.task.vision.classifier.ImageClassifier;
+
+/**
+ * Instrumented test counting the heap allocations of steady-state inferences with
+ * Debug allocation counting. A frame goes through the frame pool and the helper's classify()
+ * path, which must not allocate more than calling the Task Library on a prepared TensorImage:
+ * the library builds its results on every call, everything around it allocates nothing.
+ * Counts are written to logcat under the "InferenceAllocations" tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class InferenceAllocationTest {
+    private static final String TAG = "InferenceAllocations";
+    private static final String MODEL = "mobilenetv1.tflite";
+    // MODEL_MOBILENETV1 of the helper
+    private static final int MODEL_INDEX = 0;
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int ROTATION = 90;
+    private static final int MAX_RESULTS = 3;
+    private static final int WARMUP_INFERENCES = 20;
+    private static final int INFERENCES = 100;
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void steadyStateInferenceShouldNotAllocateOutsideTaskLibrary()
+            throws IOException, InterruptedException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        ByteBuffer plane = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 4);
+        for (int i = 0; i < plane.capacity(); i++) {
+            plane.put(i, (byte) (i * 31));
+        }
+
+        // The Task Library alone, on an input already at the model's size
+        int inputSize = ImageClassifierHelperKotlin.inputSize(MODEL_INDEX);
+        FrameTensorConverter converter = new FrameTensorConverter(inputSize, inputSize);
+        converter.convert(plane, WIDTH, HEIGHT, WIDTH * 4, ROTATION);
+        TensorBuffer tensor = TensorBuffer.createFixedSize(
+                new int[]{inputSize, inputSize, FrameTensorConverter.CHANNELS}, DataType.UINT8);
+        tensor.loadBuffer(converter.getBuffer());
+        TensorImage image = new TensorImage(DataType.UINT8);
+        image.load(tensor, ColorSpaceType.RGB);
+        ImageClassifier classifier = ImageClassifier.createFromFileAndOptions(context, MODEL,
+                ImageClassifier.ImageClassifierOptions.builder()
+                        .setScoreThreshold(0f)
+                        .setMaxResults(MAX_RESULTS)
+                        .setBaseOptions(BaseOptions.builder().setNumThreads(2).build())
+                        .build());
+        ImageProcessingOptions processingOptions = ImageProcessingOptions.builder().build();
+        for (int i = 0; i < WARMUP_INFERENCES; i++) {
+            classifier.classify(image, processingOptions);
+        }
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < INFERENCES; i++) {
+            classifier.classify(image, processingOptions);
+        }
+        Debug.stopAllocCounting();
+        int libraryAllocations = Debug.getThreadAllocCount();
+        classifier.close();
+
+        // The app's path, from the camera plane to the listener, without a period to wait for
+        ImageClassifierHelperKotlin helper = new ImageClassifierHelperKotlin(context,
+                new ImageClassifierHelperKotlin.ClassifierListener() {
+                    @Override
+                    public void onError(String error) {
+                        // no-op
+                    }
+
+                    @Override
+                    public void onResults(long inferenceTime, int modelIndex) {
+                        // no-op
+                    }
+                }, null, 0, MODEL_INDEX, Collections.singletonList("0"), null);
+        helper.setThreshold(0f);
+        helper.setMaxResults(MAX_RESULTS);
+        // Recreated with the options above by the next classify
+        helper.clearImageClassifier();
+        // One frame is the latest, one is read and one is written
+        FramePool framePool = new FramePool(3);
+        for (int i = 0; i < WARMUP_INFERENCES; i++) {
+            classifyFrame(plane, framePool, helper);
+        }
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < INFERENCES; i++) {
+            classifyFrame(plane, framePool, helper);
+        }
+        Debug.stopAllocCounting();
+        int helperAllocations = Debug.getThreadAllocCount();
+        helper.clearImageClassifier();
+
+        Log.i(TAG, "allocations per inference: task library " + libraryAllocations / INFERENCES
+                + ", frame pool and helper " + helperAllocations / INFERENCES);
+        assertTrue(framePool.getConvertedTensors() >= INFERENCES);
+        assertTrue(helperAllocations <= libraryAllocations);
+    }
+
+    private static void classifyFrame(ByteBuffer plane, FramePool framePool, ImageClassifierHelperKotlin helper)
+            throws InterruptedException {
+        FramePool.Frame frame = framePool.acquireForWrite(WIDTH, HEIGHT, WIDTH * 4, plane.remaining());
+        frame.copyFrom(plane);
+        framePool.publish(frame, ROTATION, 0);
+        FramePool.Frame latest = framePool.acquireLatest();
+        try {
+            helper.classify(latest);
+        } finally {
+            framePool.release(latest);
+        }
+        helper.waitForNextPeriod();
+    }
+}
@@ -0,0 +1,92 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Instrumented benchmark comparing the cost of one telemetry sample when every node is read by
+ * forking "cat" (the previous DataProcessor behaviour) against the pre-opened SysfsSampler.
+ * Results are written to logcat under the "SysfsSamplerBenchmark" tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SysfsSamplerBenchmark {
+    private static final String TAG = "SysfsSamplerBenchmark";
+    private static final int WARMUP_SAMPLES = 5;
+    private static final int SAMPLES = 50;
+
+    @Test
+    public void preOpenedNodesShouldBeCheaperThanProcesses() throws IOException, InterruptedException {
+        List<String> paths = readableNodes();
+        assumeFalse("No readable sysfs nodes on this device", paths.isEmpty());
+
+        for (int i = 0; i < WARMUP_SAMPLES; i++) {
+            sampleWithProcesses(paths);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < SAMPLES; i++) {
+            sampleWithProcesses(paths);
+        }
+        long processNanos = (System.nanoTime() - start) / SAMPLES;
+
+        SysfsSampler sampler = new SysfsSampler(false);
+        for (String path : paths) {
+            sampler.addValue(path);
+        }
+        for (int i = 0; i < WARMUP_SAMPLES; i++) {
+            sampler.sample();
+        }
+        start = System.nanoTime();
+        for (int i = 0; i < SAMPLES; i++) {
+            sampler.sample();
+        }
+        long samplerNanos = (System.nanoTime() - start) / SAMPLES;
+        sampler.close();
+
+        Log.i(TAG, paths.size() + " nodes, cost per sample: process " + processNanos / 1000
+                + " us, sampler " + samplerNanos / 1000 + " us");
+        assertTrue(samplerNanos < processNanos);
+    }
+
+    private static void sampleWithProcesses(List<String> paths)
+            throws IOException, InterruptedException {
+        for (String path : paths) {
+            Process process = Runtime.getRuntime().exec("cat " + path);
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream()));
+            reader.readLine();
+            reader.close();
+            process.waitFor();
+        }
+    }
+
+    // The same kind of nodes DataProcessor samples on every tick, limited to the ones the
+    // test process can open without root
+    private static List<String> readableNodes() {
+        List<String> paths = new ArrayList<>();
+        for (int cpu = 0; ; cpu++) {
+            File freq = new File("/sys/devices/system/cpu/cpu" + cpu + "/cpufreq/scaling_cur_freq");
+            if (!freq.exists()) break;
+            if (freq.canRead()) paths.add(freq.getPath());
+        }
+        for (int zone = 0; ; zone++) {
+            File temp = new File("/sys/class/thermal/thermal_zone" + zone + "/temp");
+            if (!temp.exists()) break;
+            if (temp.canRead()) paths.add(temp.getPath());
+        }
+        return paths;
+    }
+}
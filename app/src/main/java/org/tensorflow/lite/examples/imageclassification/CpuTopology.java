@@ -0,0 +1,258 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * The CPU cores and clusters of the device, discovered once from sysfs.
+ *
+ * Every cpufreq policy is one cluster, made up of the cores in its related_cpus. Clusters are
+ * ordered from the least to the most capable, by cpu_capacity and then by cpuinfo_max_freq,
+ * and named LITTLE/MID/BIG (LITTLE/BIG on two-cluster devices, CLUSTERn beyond three). Cores
+ * are numbered as in sysfs, so cpu10 and up are kept.
+ */
+public class CpuTopology {
+    private static final String TAG = "CPU";
+    private static final String CPU_DIR = "/sys/devices/system/cpu";
+
+    /** One cpufreq policy and the cores it controls. */
+    public static final class Cluster {
+        final String name;
+        final String policyPath;
+        final int[] cpus;
+        final int capacity;
+        final long maxFrequency;
+        final long minFrequency;
+        final long[] availableFrequencies;
+
+        Cluster(String name, String policyPath, int[] cpus, int capacity, long maxFrequency,
+                long minFrequency, long[] availableFrequencies) {
+            this.name = name;
+            this.policyPath = policyPath;
+            this.cpus = cpus;
+            this.capacity = capacity;
+            this.maxFrequency = maxFrequency;
+            this.minFrequency = minFrequency;
+            this.availableFrequencies = availableFrequencies;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // e.g. "/sys/devices/system/cpu/cpufreq/policy4/"
+        public String getPolicyPath() {
+            return policyPath;
+        }
+
+        public int[] getCpus() {
+            return cpus;
+        }
+
+        // cpu_capacity of the cluster's cores, 0 if the kernel does not expose it
+        public int getCapacity() {
+            return capacity;
+        }
+
+        // In kHz, as in sysfs
+        public long getMaxFrequency() {
+            return maxFrequency;
+        }
+
+        public long getMinFrequency() {
+            return minFrequency;
+        }
+
+        // In kHz, ascending. Empty if the driver does not list them.
+        public long[] getAvailableFrequencies() {
+            return availableFrequencies;
+        }
+    }
+
+    private final int[] cpuNumbers;
+    private final String[] cpuPaths;
+    private final Cluster[] clusters;
+    private final int[] clusterOfCpu;
+
+    private CpuTopology(int[] cpuNumbers, Cluster[] clusters) {
+        this.cpuNumbers = cpuNumbers;
+        this.clusters = clusters;
+        cpuPaths = new String[cpuNumbers.length];
+        int maxCpu = 0;
+        for (int i = 0; i < cpuNumbers.length; i++) {
+            cpuPaths[i] = CPU_DIR + "/cpu" + cpuNumbers[i] + "/";
+            maxCpu = Math.max(maxCpu, cpuNumbers[i]);
+        }
+        clusterOfCpu = new int[maxCpu + 1];
+        Arrays.fill(clusterOfCpu, -1);
+        for (int cluster = 0; cluster < clusters.length; cluster++) {
+            for (int cpu : clusters[cluster].cpus) {
+                if (cpu <= maxCpu) clusterOfCpu[cpu] = cluster;
+            }
+        }
+    }
+
+    public static CpuTopology discover() {
+        int[] cpuNumbers = listNumbered(CPU_DIR, "cpu");
+        int[] policyNumbers = listNumbered(CPU_DIR + "/cpufreq", "policy");
+
+        ArrayList<Cluster> found = new ArrayList<>();
+        for (int policy : policyNumbers) {
+            String policyPath = CPU_DIR + "/cpufreq/policy" + policy + "/";
+            int[] cpus = parseInts(readFirstLine(policyPath + "related_cpus"));
+            if (cpus.length == 0) {
+                cpus = new int[]{policy};
+            }
+            int capacity = 0;
+            for (int cpu : cpus) {
+                long cpuCapacity = parseLong(readFirstLine(CPU_DIR + "/cpu" + cpu + "/cpu_capacity"));
+                capacity = (int) Math.max(capacity, cpuCapacity);
+            }
+            long[] available = parseLongs(readFirstLine(policyPath + "scaling_available_frequencies"));
+            Arrays.sort(available);
+            found.add(new Cluster(null, policyPath, cpus, capacity,
+                    parseLong(readFirstLine(policyPath + "cpuinfo_max_freq")),
+                    parseLong(readFirstLine(policyPath + "cpuinfo_min_freq")), available));
+        }
+
+        if (found.isEmpty()) {
+            // No cpufreq, treat all cores as one cluster without a policy
+            found.add(new Cluster(null, null, cpuNumbers.clone(), 0, 0, 0, new long[0]));
+        }
+
+        Collections.sort(found, (a, b) -> a.capacity != b.capacity
+                ? Integer.compare(a.capacity, b.capacity)
+                : Long.compare(a.maxFrequency, b.maxFrequency));
+        Cluster[] clusters = new Cluster[found.size()];
+        for (int i = 0; i < clusters.length; i++) {
+            Cluster c = found.get(i);
+            clusters[i] = new Cluster(clusterName(i, clusters.length), c.policyPath, c.cpus,
+                    c.capacity, c.maxFrequency, c.minFrequency, c.availableFrequencies);
+        }
+        return new CpuTopology(cpuNumbers, clusters);
+    }
+
+    private static String clusterName(int cluster, int clusterCount) {
+        if (clusterCount == 1) return "CPU";
+        if (clusterCount == 2) return cluster == 0 ? "LITTLE" : "BIG";
+        if (clusterCount == 3) return new String[]{"LITTLE", "MID", "BIG"}[cluster];
+        return "CLUSTER" + cluster;
+    }
+
+    public int getCpuCount() {
+        return cpuNumbers.length;
+    }
+
+    // Number of the i-th core, e.g. 10 for cpu10
+    public int getCpuNumber(int i) {
+        return cpuNumbers[i];
+    }
+
+    // e.g. "/sys/devices/system/cpu/cpu10/"
+    public String getCpuPath(int i) {
+        return cpuPaths[i];
+    }
+
+    // Highest cpu number + 1, the size of arrays indexed by cpu number
+    public int getCpuNumberLimit() {
+        return clusterOfCpu.length;
+    }
+
+    public int getClusterCount() {
+        return clusters.length;
+    }
+
+    public Cluster getCluster(int cluster) {
+        return clusters[cluster];
+    }
+
+    // Cluster index of a cpu number, -1 if the cpu is not in any policy
+    public int getClusterOf(int cpu) {
+        return cpu < clusterOfCpu.length ? clusterOfCpu[cpu] : -1;
+    }
+
+    // The cpu numbers of each cluster, e.g. {{0, 1, 2, 3}, {4, 5}, {6, 7}}
+    public int[][] getClusterCpus() {
+        int[][] cpus = new int[clusters.length][];
+        for (int i = 0; i < clusters.length; i++) {
+            cpus[i] = clusters[i].cpus;
+        }
+        return cpus;
+    }
+
+    public void log() {
+        Log.d(TAG, cpuNumbers.length + " cores in " + clusters.length + " clusters");
+        for (Cluster cluster : clusters) {
+            Log.d(TAG, cluster.name + " cpus " + Arrays.toString(cluster.cpus)
+                    + " capacity " + cluster.capacity
+                    + " Min Freq: " + cluster.minFrequency / 1000000f
+                    + " Max Freq: " + cluster.maxFrequency / 1000000f + " GHz, "
+                    + cluster.availableFrequencies.length + " frequencies");
+        }
+    }
+
+    // Numbers of the entries named prefix + digits, in ascending order
+    private static int[] listNumbered(String dir, String prefix) {
+        String[] names = new File(dir).list();
+        if (names == null) return new int[0];
+        int[] numbers = new int[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.length() > prefix.length() && name.startsWith(prefix)
+                    && name.substring(prefix.length()).matches("[0-9]+")) {
+                numbers[count++] = Integer.parseInt(name.substring(prefix.length()));
+            }
+        }
+        numbers = Arrays.copyOf(numbers, count);
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    private static String readFirstLine(String path) {
+        try (BufferedReader br = new BufferedReader(new FileReader(path))) {
+            return br.readLine();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) return 0;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static long[] parseLongs(String values) {
+        if (values == null || values.trim().isEmpty()) return new long[0];
+        String[] tokens = values.trim().split("\\s+");
+        long[] parsed = new long[tokens.length];
+        int count = 0;
+        for (String token : tokens) {
+            try {
+                parsed[count++] = Long.parseLong(token);
+            } catch (NumberFormatException e) {
+                count--;
+            }
+        }
+        return Arrays.copyOf(parsed, count);
+    }
+
+    private static int[] parseInts(String values) {
+        long[] parsed = parseLongs(values);
+        int[] ints = new int[parsed.length];
+        for (int i = 0; i < parsed.length; i++) {
+            ints[i] = (int) parsed[i];
+        }
+        return ints;
+    }
+}
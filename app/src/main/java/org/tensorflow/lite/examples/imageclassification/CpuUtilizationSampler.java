@@ -0,0 +1,190 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Computes CPU utilization from the jiffy counters in /proc/stat and /proc/self/stat.
+ *
+ * Both files are kept open and re-read on every {@link #sample()}. The previous counters are
+ * kept in primitive arrays and each sample reports the busy percentage over the time since
+ * the last one, per core, per cluster and for this process.
+ */
+public class CpuUtilizationSampler {
+    private static final String TAG = "CpuUtilization";
+
+    // Value reported for cores that were offline or could not be read
+    public static final float UNAVAILABLE = -1f;
+
+    private final int[][] clusterCpus;
+    private final long clockTicksPerSecond;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(8192);
+    private final long[] fields = new long[8];
+    private RandomAccessFile procStat;
+    private RandomAccessFile procSelfStat;
+
+    private final long[] previousTotal;
+    private final long[] previousIdle;
+    private final long[] deltaTotal;
+    private final long[] deltaIdle;
+    private final float[] coreUtilization;
+    private final float[] clusterUtilization;
+    private long previousAppTicks;
+    private long previousAppNanos;
+    private float appUtilization;
+
+    // clusterCpus holds the cpu numbers of each cluster, e.g. {{0, 1, 2, 3}, {4, 5}, {6, 7}}
+    public CpuUtilizationSampler(int cpuCount, int[][] clusterCpus) {
+        this.clusterCpus = clusterCpus;
+        previousTotal = new long[cpuCount];
+        previousIdle = new long[cpuCount];
+        deltaTotal = new long[cpuCount];
+        deltaIdle = new long[cpuCount];
+        coreUtilization = new float[cpuCount];
+        clusterUtilization = new float[clusterCpus.length];
+        clockTicksPerSecond = Os.sysconf(OsConstants._SC_CLK_TCK);
+        try {
+            procStat = new RandomAccessFile("/proc/stat", "r");
+            procSelfStat = new RandomAccessFile("/proc/self/stat", "r");
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open /proc/stat", e);
+        }
+        // Take the baseline, so that the first real sample already reports a delta
+        sample();
+    }
+
+    public void sample() {
+        sampleCores();
+        sampleClusters();
+        sampleApp();
+    }
+
+    public int getCpuCount() {
+        return coreUtilization.length;
+    }
+
+    public int getClusterCount() {
+        return clusterUtilization.length;
+    }
+
+    public float getCoreUtilization(int cpu) {
+        return coreUtilization[cpu];
+    }
+
+    public float getClusterUtilization(int cluster) {
+        return clusterUtilization[cluster];
+    }
+
+    // Busy percentage of this process, relative to one core
+    public float getAppUtilization() {
+        return appUtilization;
+    }
+
+    private void sampleCores() {
+        for (int cpu = 0; cpu < coreUtilization.length; cpu++) {
+            deltaTotal[cpu] = 0;
+            deltaIdle[cpu] = 0;
+            coreUtilization[cpu] = UNAVAILABLE;
+        }
+        int length = read(procStat);
+        int pos = 0;
+        while (pos < length) {
+            int end = SysfsSampler.lineEnd(buffer, pos, length);
+            // Per-core lines look like "cpu3 user nice system idle iowait irq softirq steal ..."
+            // and are missing for offline cores
+            if (end - pos > 3 && buffer.get(pos) == 'c' && buffer.get(pos + 1) == 'p'
+                    && buffer.get(pos + 2) == 'u' && buffer.get(pos + 3) != ' ') {
+                int cpu = (int) SysfsSampler.parseLong(buffer, pos + 3, end);
+                if (cpu >= 0 && cpu < coreUtilization.length) {
+                    sampleCore(cpu, pos, end);
+                }
+            }
+            pos = end + 1;
+        }
+    }
+
+    private void sampleCore(int cpu, int from, int to) {
+        Arrays.fill(fields, 0);
+        SysfsSampler.parseFields(buffer, SysfsSampler.skipTokens(buffer, from, to, 1), to,
+                fields, 0, fields.length);
+        long total = 0;
+        for (long field : fields) {
+            total += field;
+        }
+        // idle + iowait
+        long idle = fields[3] + fields[4];
+        if (previousTotal[cpu] != 0) {
+            deltaTotal[cpu] = total - previousTotal[cpu];
+            deltaIdle[cpu] = idle - previousIdle[cpu];
+            coreUtilization[cpu] = busyPercentage(deltaTotal[cpu], deltaIdle[cpu]);
+        }
+        previousTotal[cpu] = total;
+        previousIdle[cpu] = idle;
+    }
+
+    private void sampleClusters() {
+        for (int cluster = 0; cluster < clusterCpus.length; cluster++) {
+            long total = 0, idle = 0;
+            for (int cpu : clusterCpus[cluster]) {
+                if (cpu < deltaTotal.length) {
+                    total += deltaTotal[cpu];
+                    idle += deltaIdle[cpu];
+                }
+            }
+            clusterUtilization[cluster] = total > 0 ? busyPercentage(total, idle) : UNAVAILABLE;
+        }
+    }
+
+    private void sampleApp() {
+        long now = System.nanoTime();
+        int length = read(procSelfStat);
+        if (length <= 0) {
+            appUtilization = UNAVAILABLE;
+            return;
+        }
+        // The command name may contain spaces, so fields are counted from its closing ')'
+        int pos = length - 1;
+        while (pos > 0 && buffer.get(pos) != ')') {
+            pos--;
+        }
+        // utime and stime are fields 14 and 15, the 12th and 13th after the command name
+        int start = SysfsSampler.skipTokens(buffer, pos + 1, length, 11);
+        SysfsSampler.parseFields(buffer, start, length, fields, 0, 2);
+        long ticks = fields[0] + fields[1];
+        if (previousAppNanos != 0) {
+            double cpuSeconds = (double) (ticks - previousAppTicks) / clockTicksPerSecond;
+            double elapsedSeconds = (now - previousAppNanos) / 1e9;
+            appUtilization = (float) (100 * cpuSeconds / elapsedSeconds);
+        }
+        previousAppTicks = ticks;
+        previousAppNanos = now;
+    }
+
+    private int read(RandomAccessFile file) {
+        buffer.clear();
+        if (file == null) return -1;
+        try {
+            FileChannel channel = file.getChannel();
+            int length = 0;
+            int count;
+            while (buffer.hasRemaining() && (count = channel.read(buffer, length)) > 0) {
+                length += count;
+            }
+            return length;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static float busyPercentage(long total, long idle) {
+        if (total <= 0) return 0f;
+        return 100f * (total - idle) / total;
+    }
+}
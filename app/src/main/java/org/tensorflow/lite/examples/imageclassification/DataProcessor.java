@@ -1,618 +1,909 @@
 package org.tensorflow.lite.examples.imageclassification;
 
-import android.os.Build;
+import android.os.PowerManager;
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Date;
-import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.LinkedHashMap;
+import java.util.TimeZone;
 
 public class DataProcessor {
 
     MainActivity mainActivity;
     String performanceFilePath;
     String rawFilePath;
-    SimpleDateFormat dateFormat;
+    TelemetryWriter telemetryWriter;
+    TelemetryWriter.Stream performanceStream;
+    TelemetryWriter.Stream rawStream;
     String performanceFileName = "Performance_Measurements";
     String rawDataFileName = "Raw_Data";
-    String[] thermalZonePaths;
-    String[] thermalZoneTypesOfInterest = {"BIG", "MID", "LITTLE", "TPU", "G3D"};
+    // GPU and thermal zone nodes of this device, probed once per build
+    DeviceProfile deviceProfile;
     StringBuilder thermalZoneTypeHeaders;
-    String[] cpuDevicePaths;
-    List<Float> initialFreqTimes;
+    // Cores and clusters are discovered once, every header and per-cluster value follows it
+    CpuTopology cpuTopology;
+    long[][] initialPolicyTimes;
+    long[][] previousPolicyTimes;
     Boolean isRooted;
-    String rootAccess;
-    long startTimeSecs;
-
-    // Logs the maximum and minimum frequency for each CPU core in GHz
-    public static void logMaxCPUFrequencies() {
-        for (int i = 0; i < 8; i++) { // Assuming 8 cores, from cpu0 to cpu7
-            String maxPath = "/sys/devices/system/cpu/cpu" + i + "/cpufreq/cpuinfo_max_freq";
-            String minPath = "/sys/devices/system/cpu/cpu" + i + "/cpufreq/cpuinfo_min_freq";
-            try {
-                String maxFreq = readFirstLineOfFile(maxPath);
-                String minFreq = readFirstLineOfFile(minPath);
-
-                float maxFreqGHz = Float.parseFloat(maxFreq) / 1000000;
-                float minFreqGHz = Float.parseFloat(minFreq) / 1000000;
-
-                Log.d("CPU", "Core " + i + " Min Freq: " + minFreqGHz + "Max Freq: " + maxFreqGHz + " GHz");
-            } catch (IOException e) {
-                Log.e("CPU", "Error reading frequency", e);
-            } catch (NumberFormatException e) {
-                Log.e("CPU", "Error parsing frequency", e);
-            }
-        }
-    }
 
-    // Helper function to read the first line of a file
-    private static String readFirstLineOfFile(String filePath) throws IOException {
-        try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
-            return br.readLine();
-        }
-    }
+    // All sysfs nodes are opened once and re-read in place on every tick
+    SysfsSampler sampler;
+    int[] thermalZoneNodes;
+    int[] cpuFrequencyNodes;
+    int[] cpuPolicyNodes;
+    int gpuFrequencyNode;
+    int gpuUtilizationNode;
+    CpuUtilizationSampler cpuUtilizationSampler;
+
+    // All telemetry state belongs to one actor thread. The scheduler only posts ticks to it,
+    // thermal callbacks and markers are posted the same way and handled in order.
+    public static final long DEFAULT_SAMPLE_PERIOD_MS = 2000;
+    static final int MESSAGE_THERMAL_STATUS = 1;
+    static final int MESSAGE_MARKER = 2;
+    static final int MESSAGE_FLUSH = 3;
+    static final int MESSAGE_START_CALIBRATION = 4;
+    static final int MESSAGE_FINISH_CALIBRATION = 5;
+    static final int MESSAGE_CLOSE = 6;
+    long samplePeriodMs = DEFAULT_SAMPLE_PERIOD_MS;
+    SamplerScheduler scheduler;
+    TelemetryActor actor;
+    final ArrayList<SamplerScheduler.Source> tickSteps = new ArrayList<>();
+    final ArrayList<String> tickStepNames = new ArrayList<>();
+    long[] tickStepFailures = new long[0];
+    StringBuilder row = new StringBuilder();
+
+    // Every sample is published to the ring first, the CSV rows are formatted from it
+    public static final int RING_CAPACITY = 1024;
+    TelemetryRing telemetryRing;
+    TelemetryRing.Reader csvReader;
+    int timeColumn;
+    int thermalStatusColumn;
+    int[] thermalZoneColumns;
+    int[] clusterPowerColumns;
+    int gpuPowerColumn;
+    int estimatedPowerColumn;
+    int[] forecastColumns;
+    int timeToThrottleColumn;
+    int[] headroomColumns;
+    int[] cpuFrequencyColumns;
+    int gpuFrequencyColumn;
+    int[] coreUtilizationColumns;
+    int[] clusterUtilizationColumns;
+    int appUtilizationColumn;
+    int gpuUtilizationColumn;
+    int missedDeadlinesColumn;
+    int powerColumn;
+    int energyColumn;
+    int[][] policyColumns;
+
+    // Samples are logged in binary, tools/TelemetryLogConverter.java writes the CSV files
+    // from the log. Set writeCsvOnDevice to also format them on the device as before.
+    boolean writeCsvOnDevice = false;
+
+    // Battery power, averaged over each sampling window
+    PowerSampler powerSampler;
+    double previousEnergyJoules;
+    long previousEnergyNanos;
+    // Power estimated from the frequencies and utilization, for devices without a usable
+    // battery current. Set calibratePowerModel to fit the model to the battery power over
+    // the whole run, the fit is saved when the run stops.
+    PowerModel powerModel;
+    boolean calibratePowerModel = false;
+    // Zone temperatures are forecast from the estimated power, each thermal role's forecast
+    // and the earliest time to throttle are logged
+    public static final long FORECAST_HORIZON_MS = 10000;
+    ThermalPredictor thermalPredictor;
+    float[] zoneTemperatures;
+    // Platform headroom forecasts, one column per ThermalHeadroomMonitor.HORIZONS_SECONDS
+    ThermalHeadroomMonitor headroomMonitor;
+
+    // Distributions of the thermal role temperatures and cluster frequencies, one row per
+    // window in the window statistics file
+    public static final long STATS_WINDOW_MS = 30000;
+    String windowStatsFileName = "Window_Statistics";
+    TelemetryWriter.Stream windowStatsStream;
+    StreamingStats[] temperatureStats;
+    StreamingStats[] frequencyStats;
+    long statsWindowStartNanos;
+    String logFileName = "Telemetry_Log";
+    TelemetryLog telemetryLog;
+    TelemetryRing.Reader logReader;
+    // The log is journaled in a mapped file and forced to storage from the sampler tick at
+    // most this often
+    public static final long JOURNAL_FORCE_INTERVAL_MS = 1000;
+    long lastJournalForceNanos;
+    // Inferences, zone temperatures, cluster frequencies and thermal events on one timeline,
+    // in the Chrome JSON trace format
+    String traceFileName = "Trace";
+    TraceExporter traceExporter;
+    String[] clusterFrequencyCounters;
+    long sampleNanos;
 
     public DataProcessor(MainActivity activity) {
-        logMaxCPUFrequencies();
+        cpuTopology = CpuTopology.discover();
+        cpuTopology.log();
 //        printDirectoryTree("/sys/class/power_supply");
 //        printDirectoryTree("/sys/class/thermal");
         mainActivity = activity;
+        telemetryWriter = activity.telemetryWriter;
+        powerSampler = activity.powerSampler;
+        powerModel = PowerModel.load(activity, cpuTopology);
+        headroomMonitor = activity.headroomMonitor;
 
         isRooted = true;
-        rootAccess = "";
+        deviceProfile = DeviceProfile.load(activity, isRooted);
+        sampler = new SysfsSampler(isRooted);
 
         String currentFolder = mainActivity.documentsFolder;
         performanceFilePath = currentFolder + File.separator +  performanceFileName + mainActivity.get_exeriment_time() + ".csv";
         rawFilePath = currentFolder + File.separator + rawDataFileName + mainActivity.get_exeriment_time() + ".csv";
 
-        try {
-            thermalZonePaths = getThermalZoneFilePaths("/sys/class/thermal");
-        } catch (IOException | InterruptedException e) {
-            throw new RuntimeException(e);
+        thermalZoneNodes = new int[deviceProfile.getThermalZoneCount()];
+        for (int i = 0; i < thermalZoneNodes.length; i++) {
+            thermalZoneNodes[i] = sampler.addValue(deviceProfile.getThermalZonePath(i) + "temp");
         }
+        createThermalPredictor();
 
-        try {
-            cpuDevicePaths = getCPUDeviceFiles("/sys/devices/system/cpu");
-        } catch (IOException | InterruptedException e) {
-            throw new RuntimeException(e);
+        cpuFrequencyNodes = new int[cpuTopology.getCpuCount()];
+        for (int i = 0; i < cpuFrequencyNodes.length; i++) {
+            cpuFrequencyNodes[i] = sampler.addValue(cpuTopology.getCpuPath(i) + "cpufreq/scaling_cur_freq");
         }
 
+        // -1 when the device has none of the GPU nodes we know
+        gpuFrequencyNode = deviceProfile.getGpuFrequencyPath() == null ? -1
+                : sampler.addValue(deviceProfile.getGpuFrequencyPath());
+        gpuUtilizationNode = deviceProfile.getGpuUtilizationPath() == null ? -1
+                : sampler.addValue(deviceProfile.getGpuUtilizationPath());
+
+        cpuPolicyNodes = new int[cpuTopology.getClusterCount()];
+        for (int i = 0; i < cpuPolicyNodes.length; i++) {
+            String policyPath = cpuTopology.getCluster(i).getPolicyPath();
+            cpuPolicyNodes[i] = policyPath == null ? -1
+                    : sampler.addTable(policyPath + "stats/time_in_state");
+        }
+
+        cpuUtilizationSampler = new CpuUtilizationSampler(cpuTopology.getCpuNumberLimit(),
+                cpuTopology.getClusterCpus());
+
         // Create string for thermal zone type headers
         thermalZoneTypeHeaders = new StringBuilder();
-        for (String thermalZoneType: thermalZoneTypesOfInterest) {
-            thermalZoneTypeHeaders.append(thermalZoneType).append("Temperature,");
+        for (String thermalRole: DeviceProfile.THERMAL_ROLES) {
+            thermalZoneTypeHeaders.append(thermalRole).append("Temperature,");
+        }
+        StringBuilder powerEstimateHeaders = new StringBuilder();
+        for (int i = 0; i < cpuTopology.getClusterCount(); i++) {
+            powerEstimateHeaders.append(cpuTopology.getCluster(i).getName()).append("Power,");
+        }
+        powerEstimateHeaders.append("gpuPower,estimatedPower,");
+        StringBuilder forecastHeaders = new StringBuilder();
+        for (String thermalRole: DeviceProfile.THERMAL_ROLES) {
+            forecastHeaders.append(thermalRole).append("Forecast,");
+        }
+        forecastHeaders.append("timeToThrottle,");
+        for (int seconds: ThermalHeadroomMonitor.HORIZONS_SECONDS) {
+            forecastHeaders.append("headroom").append(seconds).append("s,");
+        }
+
+        // Create strings for cpu utilization headers
+        StringBuilder clusterUtilizationHeaders = new StringBuilder();
+        for (int i = 0; i < cpuTopology.getClusterCount(); i++) {
+            clusterUtilizationHeaders.append(cpuTopology.getCluster(i).getName()).append("Utilization,");
+        }
+        clusterUtilizationHeaders.append("appCpuUtilization,");
+        StringBuilder coreUtilizationHeaders = new StringBuilder();
+        for (int i = 0; i < cpuTopology.getCpuCount(); i++) {
+            coreUtilizationHeaders.append("cpu").append(cpuTopology.getCpuNumber(i)).append("Utilization,");
         }
 
         // Create file for data collection
-        String FILEPATH = performanceFilePath;
-        try (PrintWriter writer = new PrintWriter(new FileOutputStream(FILEPATH, false))) {
-            String sb = "time" +
-                    ',' +
-                    "relativeTime" +
-                    ',' +
-                    "thermalStatus" +
-                    ',' +
-                    thermalZoneTypeHeaders +
-                    "cpuFrequency" +
-                    ',' +
-                    "gpuFrequency" +
-                    ',' +
-                    "cpuUtilization" +
-                    ',' +
-                    "gpuUtilization" +
-                    '\n';
-            writer.write(sb);
+        String performanceHeader = "time" +
+                ',' +
+                "thermalStatus" +
+                ',' +
+                thermalZoneTypeHeaders +
+                "estimatedPower" +
+                ',' +
+                "cpuFrequency" +
+                ',' +
+                "gpuFrequency" +
+                ',' +
+                clusterUtilizationHeaders +
+                "gpuUtilization" +
+                '\n';
+        if (writeCsvOnDevice) {
+            performanceStream = telemetryWriter.open(performanceFilePath, performanceHeader);
             System.out.println("Creating " + performanceFileName + " done!");
-        } catch (FileNotFoundException e) {
-            System.out.println(e.getMessage());
         }
 
 
         // Create headers for raw data
-        StringBuilder thermalZoneTypes = new StringBuilder();
-        for (String currThermalZone: thermalZonePaths) {
-            try {
-                String currThermalZoneType = getThermalZoneType(currThermalZone);
-                thermalZoneTypes.append(currThermalZoneType).append(',');
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+        StringBuilder thermalZoneTypeNames = new StringBuilder();
+        for (int i = 0; i < deviceProfile.getThermalZoneCount(); i++) {
+            thermalZoneTypeNames.append(deviceProfile.getThermalZoneType(i)).append(',');
         }
         StringBuilder cpuDevicesFreq = new StringBuilder();
         String gpuDeviceFreq = "gpuFrequency,";
-        String cpuUtilization = "cpuUtilization,";
         String gpuUtilization = "gpuUtilization,";
-        for (String currCPUDevice: cpuDevicePaths) {
-            String[] cpuPathSplit = currCPUDevice.split("/");
-            String currCPUDeviceName = cpuPathSplit[
-                    cpuPathSplit.length - 2];
-            cpuDevicesFreq.append(currCPUDeviceName).append("_freq,");
+        for (int i = 0; i < cpuTopology.getCpuCount(); i++) {
+            cpuDevicesFreq.append("cpu").append(cpuTopology.getCpuNumber(i)).append("_freq,");
         }
 
-        initialFreqTimes = new ArrayList<>();
-        String cpuLittleFreqHeaders, cpuMidFreqHeaders, cpuBigFreqHeaders = "";
-        try {
-            cpuLittleFreqHeaders = getCPUPolicyHeaders(
-                    "/sys/devices/system/cpu/cpufreq/policy0", "LITTLE");
-            cpuMidFreqHeaders = getCPUPolicyHeaders(
-                    "/sys/devices/system/cpu/cpufreq/policy4", "MID");
-            cpuBigFreqHeaders = getCPUPolicyHeaders(
-                    "/sys/devices/system/cpu/cpufreq/policy8", "BIG");
-            Log.d("CPU-L", "header: "+cpuLittleFreqHeaders);
-            Log.d("CPU-M", "header: "+cpuMidFreqHeaders);
-            Log.d("CPU-B", "header: "+cpuBigFreqHeaders);
-        } catch (IOException | InterruptedException e) {
-            throw new RuntimeException(e);
+        // The first sample of each time_in_state table is the baseline for all later rows
+        sampler.sample();
+        initialPolicyTimes = new long[cpuPolicyNodes.length][];
+        previousPolicyTimes = new long[cpuPolicyNodes.length][];
+        StringBuilder cpuPolicyHeaders = new StringBuilder();
+        for (int i = 0; i < cpuPolicyNodes.length; i++) {
+            int node = cpuPolicyNodes[i];
+            int rows = node < 0 ? 0 : sampler.rows(node);
+            initialPolicyTimes[i] = new long[rows];
+            for (int row = 0; row < rows; row++) {
+                initialPolicyTimes[i][row] = sampler.value(node, row);
+                cpuPolicyHeaders.append(sampler.key(node, row) / 1000000f).append(',');
+            }
+            cpuPolicyHeaders.append(cpuTopology.getCluster(i).getName()).append(',');
+            previousPolicyTimes[i] = initialPolicyTimes[i].clone();
         }
+        Log.d("CPU", "header: " + cpuPolicyHeaders);
+
+        createTelemetryRing();
 
         // Create file for raw data collection
-        String RAWFILEPATH = rawFilePath;
-        try (PrintWriter writer = new PrintWriter(new FileOutputStream(RAWFILEPATH, false))) {
-            String sb = "time" +
-                    ',' +
-                    "relativeTime" +
-                    ',' +
-                    "thermalStatus" +
-                    ',' +
-                    thermalZoneTypes +
-                    cpuDevicesFreq +
-                    gpuDeviceFreq +
-                    cpuUtilization +
-                    gpuUtilization +
-                    cpuLittleFreqHeaders +
-                    cpuMidFreqHeaders +
-                    cpuBigFreqHeaders +
-                    '\n';
-            writer.write(sb);
+        String rawHeader = "time" +
+                ',' +
+                "thermalStatus" +
+                ',' +
+                thermalZoneTypeNames +
+                powerEstimateHeaders +
+                forecastHeaders +
+                cpuDevicesFreq +
+                gpuDeviceFreq +
+                coreUtilizationHeaders +
+                clusterUtilizationHeaders +
+                gpuUtilization +
+                "missedDeadlines," +
+                "power," +
+                "energy," +
+                cpuPolicyHeaders +
+                '\n';
+        if (writeCsvOnDevice) {
+            rawStream = telemetryWriter.open(rawFilePath, rawHeader);
             System.out.println("Creating " + rawDataFileName + " done!");
-        } catch (FileNotFoundException e) {
-            System.out.println(e.getMessage());
         }
 
+        createTelemetryLog(performanceHeader, rawHeader);
+        createWindowStats();
+        createTrace();
+        if (calibratePowerModel) {
+            powerModel.startCalibration();
+        }
         dataCollection();
     }
 
-    public void dataCollection() {
-        Timer t = new Timer();
-        t.scheduleAtFixedRate(
-                new TimerTask() {
-                    @Override
-                    public void run() {
-                        try {
-                            processDataCollection();
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    }
-                },
-                0, 2000);
-    }
-
-    public void processDataCollection() throws IOException {
-        String FILEPATH = performanceFilePath;
-
-        ArrayList<String> currentThermalData = processThermalData(false);
-        ArrayList<Float> currentFrequencies = processFrequencyData();
-        ArrayList<String> currentUtilizations = processUtilizationData();
-        ArrayList<Float> currentPolicyTimes = processPolicyData();
-
-        StringBuilder allThermalDataOfInterest = new StringBuilder();
-        for (int i = 0; i < currentThermalData.size(); i++) {
-            allThermalDataOfInterest.append(currentThermalData.get(i)).append(",");
-        }
-
-        dateFormat = new SimpleDateFormat("HH:mm:ss:SSS");
-        String currTime = dateFormat.format(new Date());
-        String relativeTime = Long.toString(getRelativeTime(currTime));
-        try (PrintWriter writer = new PrintWriter(new FileOutputStream(FILEPATH, true))) {
-            String sb = currTime +
-                    ',' +
-                    relativeTime +
-                    ',' +
-                    allThermalDataOfInterest +
-                    currentFrequencies.get(0) +
-                    ',' +
-                    currentFrequencies.get(1) +
-                    ',' +
-                    currentUtilizations.get(0) +
-                    ',' +
-                    currentUtilizations.get(1) +
-                    '\n';
-            writer.write(sb);
-            System.out.println("Writing to " + performanceFileName + " done!");
-        } catch (FileNotFoundException | IndexOutOfBoundsException e) {
-            System.out.println(e.getMessage());
-        }
-
-        StringBuilder allCPUFreqs = new StringBuilder();
-        for (int i = 2; i < currentFrequencies.size(); i++) {
-            allCPUFreqs.append(currentFrequencies.get(i)).append(",");
-        }
-
-        currentThermalData = processThermalData(true);
-        StringBuilder allThermalData = new StringBuilder();
-        for (int i = 0; i < currentThermalData.size(); i++) {
-            allThermalData.append(currentThermalData.get(i)).append(",");
-        }
-
-        StringBuilder formattedPolicyData = new StringBuilder();
-        for (Float policyData: currentPolicyTimes) {
-            formattedPolicyData.append(policyData).append(',');
-        }
-        formattedPolicyData.deleteCharAt(formattedPolicyData.length() - 1);
-
-        String RAWFILEPATH = rawFilePath;
-        try (PrintWriter writer = new PrintWriter(new FileOutputStream(RAWFILEPATH, true))) {
-            String sb = currTime +
-                    ',' +
-                    relativeTime +
-                    ',' +
-                    allThermalData +
-                    allCPUFreqs +
-                    currentFrequencies.get(1) +
-                    ',' +
-                    currentUtilizations.get(0) +
-                    ',' +
-                    currentUtilizations.get(1) +
-                    ',' +
-                    formattedPolicyData +
-                    '\n';
-            writer.write(sb);
-            System.out.println("Writing to " + RAWFILEPATH + " done!");
-        } catch (FileNotFoundException | IndexOutOfBoundsException e) {
-            System.out.println(e.getMessage());
-        }
-    }
-
-    private ArrayList<String> processUtilizationData() {
-        /*
-        currentUtilizations = [cpuUtilization, gpuUtilization]
-         */
-        ArrayList<String> currentUtilizations = new ArrayList<>();
-
-        // Get CPU Utilization
-        String cpuUtilization = "0";
+    private void createTelemetryRing() {
+        TelemetryRing.Layout layout = new TelemetryRing.Layout();
+        timeColumn = layout.addLong("time");
+        thermalStatusColumn = layout.addLong("thermalStatus");
+        thermalZoneColumns = new int[thermalZoneNodes.length];
+        for (int i = 0; i < thermalZoneColumns.length; i++) {
+            thermalZoneColumns[i] = layout.addFloat(deviceProfile.getThermalZoneType(i));
+        }
+        clusterPowerColumns = new int[cpuTopology.getClusterCount()];
+        for (int i = 0; i < clusterPowerColumns.length; i++) {
+            clusterPowerColumns[i] = layout.addFloat(cpuTopology.getCluster(i).getName() + "Power");
+        }
+        gpuPowerColumn = layout.addFloat("gpuPower");
+        estimatedPowerColumn = layout.addFloat("estimatedPower");
+        // Only for the roles this device has a zone for
+        forecastColumns = new int[DeviceProfile.THERMAL_ROLES.length];
+        for (int role = 0; role < forecastColumns.length; role++) {
+            forecastColumns[role] = deviceProfile.getThermalRoleZone(role) < 0 ? -1
+                    : layout.addFloat(DeviceProfile.THERMAL_ROLES[role] + "Forecast");
+        }
+        timeToThrottleColumn = layout.addLong("timeToThrottle");
+        headroomColumns = new int[ThermalHeadroomMonitor.HORIZONS_SECONDS.length];
+        for (int i = 0; i < headroomColumns.length; i++) {
+            headroomColumns[i] = layout.addFloat("headroom" + ThermalHeadroomMonitor.HORIZONS_SECONDS[i] + "s");
+        }
+        cpuFrequencyColumns = new int[cpuFrequencyNodes.length];
+        for (int i = 0; i < cpuFrequencyColumns.length; i++) {
+            cpuFrequencyColumns[i] = layout.addFloat("cpu" + cpuTopology.getCpuNumber(i) + "_freq");
+        }
+        gpuFrequencyColumn = layout.addFloat("gpuFrequency");
+        coreUtilizationColumns = new int[cpuTopology.getCpuCount()];
+        for (int i = 0; i < coreUtilizationColumns.length; i++) {
+            coreUtilizationColumns[i] = layout.addFloat("cpu" + cpuTopology.getCpuNumber(i) + "Utilization");
+        }
+        clusterUtilizationColumns = new int[cpuTopology.getClusterCount()];
+        for (int i = 0; i < clusterUtilizationColumns.length; i++) {
+            clusterUtilizationColumns[i] = layout.addFloat(cpuTopology.getCluster(i).getName() + "Utilization");
+        }
+        appUtilizationColumn = layout.addFloat("appCpuUtilization");
+        gpuUtilizationColumn = layout.addFloat("gpuUtilization");
+        missedDeadlinesColumn = layout.addLong("missedDeadlines");
+        powerColumn = layout.addFloat("power");
+        energyColumn = layout.addDouble("energy");
+        policyColumns = new int[cpuPolicyNodes.length][];
+        for (int i = 0; i < cpuPolicyNodes.length; i++) {
+            policyColumns[i] = new int[initialPolicyTimes[i].length];
+            for (int freq = 0; freq < policyColumns[i].length; freq++) {
+                policyColumns[i][freq] = layout.addFloat(cpuTopology.getCluster(i).getName()
+                        + "_" + sampler.key(cpuPolicyNodes[i], freq) / 1000000f);
+            }
+        }
+        telemetryRing = new TelemetryRing(layout, RING_CAPACITY);
+        csvReader = telemetryRing.newReader();
+    }
+
+    private void createTelemetryLog(String performanceHeader, String rawHeader) {
+        // Everything the converter needs to rebuild both CSV layouts from the records. Column
+        // specs are "#n" for column n, "avg#a#b.." for the mean of columns and "=v" for a
+        // constant, besides the time and thermalStatus columns.
+        StringBuilder performanceColumns = new StringBuilder("time,thermalStatus");
+        for (int role = 0; role < DeviceProfile.THERMAL_ROLES.length; role++) {
+            int zone = deviceProfile.getThermalRoleZone(role);
+            performanceColumns.append(zone < 0 ? ",=-1.0" : ",#" + thermalZoneColumns[zone]);
+        }
+        performanceColumns.append(",#").append(estimatedPowerColumn);
+        performanceColumns.append(",avg");
+        for (int column: cpuFrequencyColumns) {
+            performanceColumns.append('#').append(column);
+        }
+        performanceColumns.append(",#").append(gpuFrequencyColumn);
+        appendColumnSpecs(performanceColumns, clusterUtilizationColumns);
+        performanceColumns.append(",#").append(appUtilizationColumn)
+                .append(",#").append(gpuUtilizationColumn);
+
+        StringBuilder rawColumns = new StringBuilder("time,thermalStatus");
+        appendColumnSpecs(rawColumns, thermalZoneColumns);
+        appendColumnSpecs(rawColumns, clusterPowerColumns);
+        rawColumns.append(",#").append(gpuPowerColumn)
+                .append(",#").append(estimatedPowerColumn);
+        for (int column: forecastColumns) {
+            rawColumns.append(column < 0 ? ",=-1.0" : ",#" + column);
+        }
+        rawColumns.append(",#").append(timeToThrottleColumn);
+        appendColumnSpecs(rawColumns, headroomColumns);
+        appendColumnSpecs(rawColumns, cpuFrequencyColumns);
+        rawColumns.append(",#").append(gpuFrequencyColumn);
+        appendColumnSpecs(rawColumns, coreUtilizationColumns);
+        appendColumnSpecs(rawColumns, clusterUtilizationColumns);
+        rawColumns.append(",#").append(appUtilizationColumn)
+                .append(",#").append(gpuUtilizationColumn)
+                .append(",#").append(missedDeadlinesColumn)
+                .append(",#").append(powerColumn)
+                .append(",#").append(energyColumn);
+        for (int[] columns: policyColumns) {
+            appendColumnSpecs(rawColumns, columns);
+            rawColumns.append(",=0.0");
+        }
+
+        StringBuilder thermalStatusNames = new StringBuilder();
+        for (int status = 0; status <= PowerManager.THERMAL_STATUS_SHUTDOWN; status++) {
+            thermalStatusNames.append(status == 0 ? "" : ",").append(PFManager.getThermalStatusName(status));
+        }
+
+        LinkedHashMap<String, String> properties = new LinkedHashMap<>();
+        properties.put("experimentTime", mainActivity.get_exeriment_time());
+        properties.put("timeZone", TimeZone.getDefault().getID());
+        // The time column is in nanoseconds of ExperimentClock
+        properties.put("startWallMillis", Long.toString(ExperimentClock.getStartWallMillis()));
+        properties.put("startElapsedRealtimeNanos", Long.toString(ExperimentClock.getStartElapsedRealtimeNanos()));
+        properties.put("thermalStatusNames", thermalStatusNames.toString());
+        properties.put("csv.files", "performance,raw");
+        properties.put("csv.performance.file", performanceFileName);
+        properties.put("csv.performance.header", performanceHeader.trim());
+        properties.put("csv.performance.columns", performanceColumns.toString());
+        properties.put("csv.raw.file", rawDataFileName);
+        properties.put("csv.raw.header", rawHeader.trim());
+        properties.put("csv.raw.columns", rawColumns.toString());
+
+        recoverJournals();
+        String logFilePath = mainActivity.documentsFolder + File.separator + logFileName
+                + mainActivity.get_exeriment_time() + ".bin";
         try {
-            cpuUtilization = getCPUUtilization();
+            telemetryLog = new TelemetryLog(
+                    new TelemetryJournal(logFilePath, TelemetryJournal.DEFAULT_CHUNK_SIZE),
+                    telemetryRing.getLayout(), properties, TelemetryLog.DEFAULT_CHECKPOINT_INTERVAL);
+            logReader = telemetryRing.newReader();
+            System.out.println("Creating " + logFileName + " done!");
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            Log.e("DataProcessor", "Cannot create " + logFilePath, e);
         }
-        currentUtilizations.add(cpuUtilization);
+    }
 
-        // Get GPU Utilization
-        Float gpuUtilization = 0f;
-        try {
+    private void createWindowStats() {
+        StringBuilder header = new StringBuilder("time,windowSeconds,");
+        temperatureStats = new StreamingStats[DeviceProfile.THERMAL_ROLES.length];
+        for (int role = 0; role < temperatureStats.length; role++) {
+            String name = DeviceProfile.THERMAL_ROLES[role] + "Temperature";
+            temperatureStats[role] = new StreamingStats(name, 1000, 1, LogHistogram.PRECISE_SUB_BUCKET_BITS);
+            StreamingStats.appendHeader(header, name);
+        }
+        frequencyStats = new StreamingStats[cpuTopology.getClusterCount()];
+        for (int i = 0; i < frequencyStats.length; i++) {
+            String name = cpuTopology.getCluster(i).getName() + "Frequency";
+            frequencyStats[i] = new StreamingStats(name, 1000, 1, LogHistogram.PRECISE_SUB_BUCKET_BITS);
+            StreamingStats.appendHeader(header, name);
+        }
+        header.setCharAt(header.length() - 1, '\n');
+        windowStatsStream = telemetryWriter.open(mainActivity.documentsFolder + File.separator
+                + windowStatsFileName + mainActivity.get_exeriment_time() + ".csv", header);
+    }
+
+    private void createTrace() {
+        traceExporter = new TraceExporter(telemetryWriter, mainActivity.documentsFolder + File.separator
+                + traceFileName + mainActivity.get_exeriment_time() + ".json");
+        clusterFrequencyCounters = new String[cpuTopology.getClusterCount()];
+        for (int i = 0; i < clusterFrequencyCounters.length; i++) {
+            clusterFrequencyCounters[i] = cpuTopology.getCluster(i).getName() + " frequency";
+        }
+    }
 
-            if (isRooted) {
-                // For Pixel 8, ROOTED, the gpu frequency is stored in "/sys/class/misc/mali0/device/"
-                // in file "cur_freq"
-                gpuUtilization = getGPUUtilization(
-                        "/sys/class/misc/mali0/device",
-                        "utilization");
-            } else {
-                // For Note10+, the gpu utilization is stored in "/sys/class/kgsl/kgsl-3d0"
-                // in file "busy_percentage"
-                gpuUtilization = getGPUUtilization(
-                        "/sys/class/kgsl/kgsl-3d0",
-                        "gpu_busy_percentage");
+    // Counters of the sample just published, then the inferences since the previous tick
+    private void writeTrace() {
+        for (int i = 0; i < thermalZoneNodes.length; i++) {
+            long temperature = sampler.value(thermalZoneNodes[i]);
+            if (temperature == SysfsSampler.MISSING) continue;
+            traceExporter.counter(deviceProfile.getThermalZoneType(i), "C", sampleNanos, temperature / 1000.0);
+        }
+        // A cluster's cores share a policy, the fastest one stands for the cluster
+        for (int cluster = 0; cluster < clusterFrequencyCounters.length; cluster++) {
+            long frequency = SysfsSampler.MISSING;
+            for (int i = 0; i < cpuFrequencyNodes.length; i++) {
+                if (cpuTopology.getClusterOf(cpuTopology.getCpuNumber(i)) != cluster) continue;
+                frequency = Math.max(frequency, sampler.value(cpuFrequencyNodes[i]));
             }
+            if (frequency == SysfsSampler.MISSING) continue;
+            traceExporter.counter(clusterFrequencyCounters[cluster], "MHz", sampleNanos, frequency / 1000.0);
+        }
+        // The gpuFrequency column is in the node's unit / 1000, MHz on Mali and GHz on Adreno,
+        // the trace converts from the node per GPU type
+        long gpuFrequency = gpuFrequencyNode < 0 ? SysfsSampler.MISSING : sampler.value(gpuFrequencyNode);
+        double gpuFrequencyToMHz = deviceProfile.getGpuFrequencyToMHz();
+        if (gpuFrequency != SysfsSampler.MISSING && !Double.isNaN(gpuFrequencyToMHz)) {
+            traceExporter.counter("gpu frequency", "MHz", sampleNanos, gpuFrequency * gpuFrequencyToMHz);
+        }
+        traceExporter.drain();
+    }
 
+    // Temperatures are recorded in millidegrees and frequencies in kHz, and reported in degrees
+    // and MHz
+    private void recordWindowStats() {
+        for (int role = 0; role < temperatureStats.length; role++) {
+            int zone = deviceProfile.getThermalRoleZone(role);
+            long temperature = zone < 0 ? SysfsSampler.MISSING : sampler.value(thermalZoneNodes[zone]);
+            if (temperature != SysfsSampler.MISSING) temperatureStats[role].record(temperature);
+        }
+        for (int i = 0; i < cpuFrequencyNodes.length; i++) {
+            int cluster = cpuTopology.getClusterOf(cpuTopology.getCpuNumber(i));
+            long frequency = sampler.value(cpuFrequencyNodes[i]);
+            if (cluster >= 0 && frequency != SysfsSampler.MISSING) frequencyStats[cluster].record(frequency);
+        }
+
+        long now = ExperimentClock.now();
+        if (statsWindowStartNanos == 0) statsWindowStartNanos = now;
+        if (now - statsWindowStartNanos < STATS_WINDOW_MS * 1000000) return;
+        row.setLength(0);
+        row.append(now).append(',')
+                .append((now - statsWindowStartNanos) / 1e9f).append(',');
+        for (StreamingStats stats: temperatureStats) {
+            stats.snapshot();
+            stats.appendValues(row);
+        }
+        for (StreamingStats stats: frequencyStats) {
+            stats.snapshot();
+            stats.appendValues(row);
+        }
+        row.setCharAt(row.length() - 1, '\n');
+        telemetryWriter.write(windowStatsStream, row);
+        statsWindowStartNanos = now;
+    }
 
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    // Cuts the logs of runs that did not shut down cleanly after their last complete record
+    private void recoverJournals() {
+        File[] logFiles = new File(mainActivity.documentsFolder).listFiles(
+                (dir, name) -> name.startsWith(logFileName) && name.endsWith(".bin"));
+        if (logFiles == null) return;
+        for (File logFile: logFiles) {
+            if (TelemetryJournal.recover(logFile)) {
+                System.out.println("Recovered " + logFile.getName());
+            }
         }
-        currentUtilizations.add(Float.toString(gpuUtilization));
+    }
 
-        return currentUtilizations;
+    private static void appendColumnSpecs(StringBuilder specs, int[] columns) {
+        for (int column: columns) {
+            specs.append(",#").append(column);
+        }
     }
 
-    private ArrayList<Float> processFrequencyData() {
-        /*
-        currentFrequencies = [cpuFrequency, gpuFrequency, cpuFrequencies]
-         */
-        ArrayList<Float> currentFrequencies = new ArrayList<>();
+    // The one place the samples are held, for the UI, controllers and exporters
+    public TelemetryRing getTelemetryRing() {
+        return telemetryRing;
+    }
 
-        // Get CPU frequencies
-        Float avgCPUFreq = 0f, gpuFreq = 0f;
-        ArrayList<Float> cpuFreqs = new ArrayList<>();
-        for (String cpuDevicePath: cpuDevicePaths) {
-            try {
-                Float currCPUFreq = getCPUFrequency(cpuDevicePath);
-                cpuFreqs.add(currCPUFreq);
-                avgCPUFreq += currCPUFreq;
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+    // Where the inference helpers record their slices
+    public TraceExporter getTraceExporter() {
+        return traceExporter;
+    }
+
+    // Forecasts of the thermal zones, e.g. for a scheduler to back off before throttling
+    public ThermalPredictor getThermalPredictor() {
+        return thermalPredictor;
+    }
+
+    // Each zone throttles at its first trip point, zones without a readable one only get
+    // temperature forecasts
+    private void createThermalPredictor() {
+        thermalPredictor = new ThermalPredictor(thermalZoneNodes.length);
+        zoneTemperatures = new float[thermalZoneNodes.length];
+        SysfsSampler tripPoints = new SysfsSampler(isRooted);
+        int[] tripPointNodes = new int[thermalZoneNodes.length];
+        for (int i = 0; i < tripPointNodes.length; i++) {
+            tripPointNodes[i] = tripPoints.addValue(deviceProfile.getThermalZonePath(i) + "trip_point_0_temp");
+        }
+        tripPoints.sample();
+        for (int i = 0; i < tripPointNodes.length; i++) {
+            long tripPoint = tripPoints.value(tripPointNodes[i]);
+            if (tripPoint != SysfsSampler.MISSING && tripPoint > 0) {
+                thermalPredictor.setThrottleTemperature(i, tripPoint / 1000f);
             }
         }
-        avgCPUFreq /= cpuDevicePaths.length;
-        currentFrequencies.add(avgCPUFreq);
+        tripPoints.close();
+    }
 
-        // Get GPU Frequency
-        try {
-            if (isRooted) {
-                // For Pixel 8, ROOTED, the gpu frequency is stored in "/sys/class/misc/mali0/device/"
-                // in file "cur_freq"
-                gpuFreq = getGPUFrequency("/sys/class/misc/mali0/device/", "cur_freq");
-            } else {
-                // For Note10+, the gpu frequency is stored in "/sys/class/kgsl/kgsl-3d0"
-                // in file "cur_freq"
-                gpuFreq = getGPUFrequency("/sys/class/kgsl/kgsl-3d0", "clock_mhz");
+    public void dataCollection() {
+        // Each step is isolated, so e.g. an unreadable node does not stop the rows from being
+        // written
+        addTickStep("sysfs", sampler::sample);
+        addTickStep("cpuUtilization", cpuUtilizationSampler::sample);
+        addTickStep("ring", this::publishSample);
+        addTickStep("statistics", this::recordWindowStats);
+        addTickStep("log", this::writeLog);
+        addTickStep("trace", this::writeTrace);
+        if (writeCsvOnDevice) {
+            addTickStep("rows", this::writeRows);
+        }
+        actor = new TelemetryActor("DataProcessor", TelemetryActor.DEFAULT_CAPACITY, this::handleMessage);
+        actor.start();
+        scheduler = new SamplerScheduler("DataProcessorTicks", samplePeriodMs);
+        scheduler.addSource("tick", actor::tick);
+        scheduler.start();
+    }
+
+    private void addTickStep(String name, SamplerScheduler.Source step) {
+        tickStepNames.add(name);
+        tickSteps.add(step);
+        tickStepFailures = new long[tickSteps.size()];
+    }
+
+    // Runs on the actor thread
+    private void handleMessage(int type, long argument, String text) throws IOException {
+        switch (type) {
+            case TelemetryActor.TICK:
+                runTickSteps();
+                break;
+            case MESSAGE_THERMAL_STATUS:
+                // Take a sample right at the transition, besides the scheduled ones
+                mainActivity.currentThermalStatus = (int) argument;
+                traceExporter.instant(PFManager.getThermalStatusName((int) argument), ExperimentClock.now());
+                headroomMonitor.onThermalStatusChanged((int) argument);
+                runTickSteps();
+                break;
+            case MESSAGE_MARKER:
+                headroomMonitor.recordEvent("marker:" + text);
+                traceExporter.instant(text, ExperimentClock.now());
+                break;
+            case MESSAGE_FLUSH:
+                if (telemetryLog != null) telemetryLog.flush();
+                break;
+            case MESSAGE_START_CALIBRATION:
+                powerModel.startCalibration();
+                break;
+            case MESSAGE_FINISH_CALIBRATION:
+                powerModel.finishCalibration();
+                break;
+            case MESSAGE_CLOSE:
+                if (powerModel.isCalibrating()) {
+                    powerModel.finishCalibration();
+                }
+                closeLog();
+                traceExporter.close();
+                // Last, so the writer takes every row the actor wrote before
+                telemetryWriter.close();
+                break;
+        }
+    }
+
+    private void runTickSteps() {
+        for (int i = 0; i < tickSteps.size(); i++) {
+            try {
+                tickSteps.get(i).sample();
+            } catch (Exception e) {
+                // Only log the first few failures of a step, they tend to repeat every tick
+                if (tickStepFailures[i]++ < 3) {
+                    Log.e("DataProcessor", "Step " + tickStepNames.get(i) + " failed", e);
+                }
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
         }
-        currentFrequencies.add(gpuFreq);
+    }
 
-        currentFrequencies.addAll(cpuFreqs);
+    // Clamped to SamplerScheduler.MIN_PERIOD_MS..MAX_PERIOD_MS
+    public void setSamplePeriodMs(long periodMs) {
+        samplePeriodMs = periodMs;
+        if (scheduler != null) {
+            scheduler.setPeriodMs(periodMs);
+        }
+    }
 
-        return currentFrequencies;
+    // Scheduled ticks that were skipped or merged because the actor was still busy
+    public long getMissedDeadlines() {
+        if (scheduler == null) return 0;
+        return scheduler.getMissedDeadlines() + actor.getCoalescedTicks();
     }
 
-    private ArrayList<String> processThermalData(Boolean isRaw) throws IOException {
-        /*
-        currentThermalData = [thermalStatus, cpuTemperature, gpuTemperature, npuTemperature, tpuTemperature]
-        currentThermalData = [thermalStatus, devicesOfInterestTemperatures
-         */
+    // Handles everything posted so far, then finishes a running calibration and closes the log,
+    // the trace and the telemetry writer. Returns right away, the actor closes them once it is
+    // done, so closing never races a tick that is still running, e.g. one blocked on a root
+    // shell read, and the journal is not truncated under it.
+    public void stop() {
+        if (scheduler == null) {
+            telemetryWriter.close();
+            return;
+        }
+        scheduler.stop();
+        actor.stop(MESSAGE_CLOSE);
+    }
 
-        ArrayList<String> currentThermalData= new ArrayList<>();
+    // Called by PFManager from the listener's binder thread, returns right away
+    public void onThermalStatusChanged(int status) {
+        if (actor != null) {
+            actor.post(MESSAGE_THERMAL_STATUS, status, null);
+        }
+    }
 
-        String currentThermalStatus = "Unknown";
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-            currentThermalStatus = mainActivity.currentThermalStatus;
+    // Records a timestamped experiment marker, e.g. the start of a test, in the events file
+    public void mark(String name) {
+        if (actor != null) {
+            actor.post(MESSAGE_MARKER, 0, name);
         }
-        currentThermalData.add(currentThermalStatus);
+    }
 
-        // Calculate Avg CPU, GPU, NPU, TPU temperatures
-        Float avgCPUTemp = 0f, avgGPUTemp = 0f, avgNPUTemp = 0f, avgTPUTemp = 0f, currFileTemp = 0f;
-        int cpuCount = 0, gpuCount = 0, npuCount = 0, tpuCount = 0;
-        for (String zoneFilePath: thermalZonePaths) {
-            currFileTemp = getThermalZoneTemp(zoneFilePath);
-            if (isRooted) {
-                currentThermalData.add(Float.toString(currFileTemp));
-            } else {
-                String currFileType = getThermalZoneType(zoneFilePath);
-                for (String thermalZoneType: thermalZoneTypesOfInterest) {
-                    if (currFileType.contains(thermalZoneType)) {
-                        currentThermalData.add(Float.toString(currFileTemp));
-                        // break out of for loop
-                        break;
-                    }
-                }
-            }
+    // Collects calibration samples for the power model from now on, see PowerModel
+    public void startPowerCalibration() {
+        actor.post(MESSAGE_START_CALIBRATION, 0, null);
+    }
+
+    // Fits and saves the power model, the result is logged
+    public void finishPowerCalibration() {
+        actor.post(MESSAGE_FINISH_CALIBRATION, 0, null);
+    }
+
+    // Logs every sample published since the last call
+    private void writeLog() throws IOException {
+        if (telemetryLog == null) return;
+        while (logReader.readNext()) {
+            telemetryLog.append(logReader);
+        }
+        long now = System.nanoTime();
+        if (now - lastJournalForceNanos >= JOURNAL_FORCE_INTERVAL_MS * 1000000) {
+            telemetryLog.flush();
+            lastJournalForceNanos = now;
         }
+    }
 
-        return currentThermalData;
+    // Forces the binary log to storage, from the actor thread
+    public void flush() {
+        if (actor != null) {
+            actor.post(MESSAGE_FLUSH, 0, null);
+        }
     }
 
-    private ArrayList<Float> processPolicyData() {
-        /*
-        currentPolicyTimes = [cpuLittlePolicyTime, cpuMidPolicyTime, cpuBigPolicyTime]
-         */
-        String policyPath = "/sys/devices/system/cpu/cpufreq/";
-        String littlePath = policyPath + "policy0/stats/time_in_state";
-        String midPath = policyPath + "policy4/stats/time_in_state";
-        String bigPath = policyPath + "policy8/stats/time_in_state";
-        ArrayList<Float> littleFreqTimes = null, midFreqTimes = null, bigFreqTimes = null;
+    private void closeLog() {
+        if (telemetryLog == null) return;
         try {
-            littleFreqTimes = getPolicyTimes(littlePath);
-            midFreqTimes = getPolicyTimes(midPath);
-            bigFreqTimes = getPolicyTimes(bigPath);
-        } catch (IOException | InterruptedException e) {
-            throw new RuntimeException(e);
+            telemetryLog.close();
+        } catch (IOException e) {
+            Log.e("DataProcessor", "Error closing " + logFileName, e);
         }
+        telemetryLog = null;
+    }
 
-        ArrayList<Float> freqTimes = new ArrayList<>();
-        freqTimes.addAll(littleFreqTimes);
-        freqTimes.addAll(midFreqTimes);
-        freqTimes.addAll(bigFreqTimes);
+    private void publishSample() {
+        sampleNanos = ExperimentClock.now();
+        telemetryRing.begin();
+        telemetryRing.putLong(timeColumn, sampleNanos);
+        telemetryRing.putLong(thermalStatusColumn, mainActivity.currentThermalStatus);
+        for (int i = 0; i < thermalZoneNodes.length; i++) {
+            float temperature = getThermalZoneTemp(thermalZoneNodes[i]);
+            telemetryRing.putDouble(thermalZoneColumns[i], temperature);
+            zoneTemperatures[i] = sampler.value(thermalZoneNodes[i]) == SysfsSampler.MISSING
+                    ? Float.NEGATIVE_INFINITY : temperature;
+        }
+        for (int i = 0; i < cpuFrequencyNodes.length; i++) {
+            telemetryRing.putDouble(cpuFrequencyColumns[i], getCPUFrequency(cpuFrequencyNodes[i]));
+        }
+        telemetryRing.putDouble(gpuFrequencyColumn, getGPUFrequency());
+        for (int i = 0; i < coreUtilizationColumns.length; i++) {
+            telemetryRing.putDouble(coreUtilizationColumns[i],
+                    cpuUtilizationSampler.getCoreUtilization(cpuTopology.getCpuNumber(i)));
+        }
+        for (int i = 0; i < clusterUtilizationColumns.length; i++) {
+            telemetryRing.putDouble(clusterUtilizationColumns[i], cpuUtilizationSampler.getClusterUtilization(i));
+        }
+        telemetryRing.putDouble(appUtilizationColumn, cpuUtilizationSampler.getAppUtilization());
+        telemetryRing.putDouble(gpuUtilizationColumn, getGPUUtilization());
+        telemetryRing.putLong(missedDeadlinesColumn, getMissedDeadlines());
+        float measuredWatts = putPower();
+        putPowerEstimate(measuredWatts);
+        putForecast();
+        for (int i = 0; i < policyColumns.length; i++) {
+            for (int freq = 0; freq < policyColumns[i].length; freq++) {
+                telemetryRing.putDouble(policyColumns[i][freq], getPolicyTime(i, freq));
+            }
+        }
+        telemetryRing.publish();
+    }
 
-        ArrayList<Float> updatedTimes = new ArrayList<>();
-        for (int i = 0; i < freqTimes.size(); i++) {
-            updatedTimes.add(freqTimes.get(i) - initialFreqTimes.get(i));
+    private void writeRows() {
+        if (!csvReader.readLatest()) return;
+        TelemetryRing.Reader sample = csvReader;
+        String currentThermalStatus = PFManager.getThermalStatusName((int) sample.getLong(thermalStatusColumn));
+        long time = sample.getLong(timeColumn);
+
+        row.setLength(0);
+        row.append(time).append(',')
+                .append(currentThermalStatus).append(',');
+        // One column per DeviceProfile.THERMAL_ROLES, in the order of the header
+        for (int role = 0; role < DeviceProfile.THERMAL_ROLES.length; role++) {
+            int zone = deviceProfile.getThermalRoleZone(role);
+            row.append(zone < 0 ? -1f : (float) sample.getDouble(thermalZoneColumns[zone])).append(',');
+        }
+        row.append((float) sample.getDouble(estimatedPowerColumn)).append(',');
+        float avgCPUFreq = 0f;
+        for (int column: cpuFrequencyColumns) {
+            avgCPUFreq += (float) sample.getDouble(column);
+        }
+        row.append(avgCPUFreq / cpuFrequencyColumns.length).append(',')
+                .append((float) sample.getDouble(gpuFrequencyColumn)).append(',');
+        appendColumns(row, sample, clusterUtilizationColumns);
+        row.append((float) sample.getDouble(appUtilizationColumn)).append(',');
+        row.append((float) sample.getDouble(gpuUtilizationColumn)).append('\n');
+        telemetryWriter.write(performanceStream, row);
+
+        row.setLength(0);
+        row.append(time).append(',')
+                .append(currentThermalStatus).append(',');
+        appendColumns(row, sample, thermalZoneColumns);
+        appendColumns(row, sample, clusterPowerColumns);
+        row.append((float) sample.getDouble(gpuPowerColumn)).append(',');
+        row.append((float) sample.getDouble(estimatedPowerColumn)).append(',');
+        for (int column: forecastColumns) {
+            row.append(column < 0 ? -1f : (float) sample.getDouble(column)).append(',');
+        }
+        row.append(sample.getLong(timeToThrottleColumn)).append(',');
+        appendColumns(row, sample, headroomColumns);
+        appendColumns(row, sample, cpuFrequencyColumns);
+        row.append((float) sample.getDouble(gpuFrequencyColumn)).append(',');
+        appendColumns(row, sample, coreUtilizationColumns);
+        appendColumns(row, sample, clusterUtilizationColumns);
+        row.append((float) sample.getDouble(appUtilizationColumn)).append(',');
+        row.append((float) sample.getDouble(gpuUtilizationColumn)).append(',');
+        row.append(sample.getLong(missedDeadlinesColumn)).append(',');
+        row.append((float) sample.getDouble(powerColumn)).append(',');
+        row.append(sample.getDouble(energyColumn)).append(',');
+        // Time spent at each frequency since the start of the experiment, followed by a
+        // separator column for each policy
+        for (int[] columns: policyColumns) {
+            appendColumns(row, sample, columns);
+            row.append(0f).append(',');
+        }
+        row.setCharAt(row.length() - 1, '\n');
+        telemetryWriter.write(rawStream, row);
+    }
+
+    private static void appendColumns(StringBuilder row, TelemetryRing.Reader sample, int[] columns) {
+        for (int column: columns) {
+            row.append((float) sample.getDouble(column)).append(',');
         }
+    }
 
-        return updatedTimes;
+    // Average power in W since the previous sample and the energy in J since the start, -1 when
+    // the battery cannot be read. Returns the power.
+    private float putPower() {
+        long now = System.nanoTime();
+        double energyJoules = powerSampler.getEnergyJoules();
+        float watts = -1f;
+        if (powerSampler.isAvailable() && previousEnergyNanos != 0) {
+            watts = (float) ((energyJoules - previousEnergyJoules) / ((now - previousEnergyNanos) / 1e9));
+        }
+        previousEnergyJoules = energyJoules;
+        previousEnergyNanos = now;
+        telemetryRing.putDouble(powerColumn, watts);
+        telemetryRing.putDouble(energyColumn, powerSampler.isAvailable() ? energyJoules : -1);
+        return watts;
     }
 
-    private String getCPUPolicyHeaders(String policyPath, String policyType) throws IOException, InterruptedException {
-        String cmd = String.format("%s cat %s/stats/time_in_state", rootAccess, policyPath);
-        Process process = Runtime.getRuntime().exec(cmd);
-        BufferedReader reader = new BufferedReader(new
-                InputStreamReader(process.getInputStream()));
-        String currLine;
-        StringBuilder cpuPolicyHeaders = new StringBuilder();
-        while ((currLine = reader.readLine()) != null) {
-            String[] currLineSplit = currLine.split(" ");
-            String currFreq = currLineSplit[0];
-            Float currFreqHz = Float.parseFloat(currFreq) / 1000000f;
-            String currTime = currLineSplit[1];
-            Float initialTimeSecs = Float.parseFloat(currTime) / 1000f;
-            initialFreqTimes.add(initialTimeSecs);
-            cpuPolicyHeaders.append(currFreqHz).append(',');
-        }
-        initialFreqTimes.add(-1f);
-        cpuPolicyHeaders.append(policyType).append(',');
-        reader.close();
-        process.waitFor();
-        return cpuPolicyHeaders.toString();
-    }
-
-    private ArrayList<Float> getPolicyTimes(String policyPath) throws IOException, InterruptedException {
-        String cmd = String.format("%s cat %s", rootAccess, policyPath);
-        Process process = Runtime.getRuntime().exec(cmd);
-        BufferedReader reader = new BufferedReader(new
-                InputStreamReader(process.getInputStream()));
-        String currLine;
-        ArrayList<Float> cpuPolicyFreqs = new ArrayList<>();
-        while ((currLine = reader.readLine()) != null) {
-            String[] currLineSplit = currLine.split(" ");
-            String currTime = currLineSplit[1];
-            Float currTimeSeconds = Float.parseFloat(currTime) / 1000f;
-            cpuPolicyFreqs.add(currTimeSeconds);
-        }
-        cpuPolicyFreqs.add(-1f);
-        reader.close();
-        process.waitFor();
-        return cpuPolicyFreqs;
-    }
-
-    private String[] getThermalZoneFilePaths(String thermalDir)
-            throws IOException, InterruptedException {
-        // thermalDir for Note10+ is usually "/sys/class/thermal"
-        String cmd = String.format("%s ls %s", rootAccess, thermalDir);
-        Process process = Runtime.getRuntime().exec(cmd);
-        BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream()));
-
-        String currFileName;
-        ArrayList<String> thermalZonePaths = new ArrayList<>();
-        while ((currFileName = reader.readLine()) != null) {
-            if (currFileName.contains("thermal_zone")) {
-                String thermalZoneFilePath = thermalDir + "/" + currFileName + "/";
-
-                // Get all thermal zones and filter later
-                thermalZonePaths.add(thermalZoneFilePath);
+    // Runs the power model on the residency since the previous sample, calibrating it against
+    // the measured power of the same window if calibration is on
+    private void putPowerEstimate(float measuredWatts) {
+        powerModel.beginSample();
+        for (int i = 0; i < cpuFrequencyNodes.length; i++) {
+            int cluster = cpuTopology.getClusterOf(cpuTopology.getCpuNumber(i));
+            long frequency = sampler.value(cpuFrequencyNodes[i]);
+            if (cluster >= 0 && frequency != SysfsSampler.MISSING) {
+                powerModel.setClusterFrequency(cluster, frequency);
             }
         }
-
-        reader.close();
-        process.waitFor();
-        return thermalZonePaths.toArray(new String[0]);
-    }
-
-    private String getThermalZoneType(String thermalZonePath) throws IOException {
-        String cmd = String.format("%s cat %stype", rootAccess, thermalZonePath);
-        Process process = Runtime.getRuntime().exec(cmd);
-        BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream()));
-        String currLine = reader.readLine();
-        if (currLine != null) {
-            return currLine;
-        }
-        return "default_zone_type";
-    }
-
-    private Float getThermalZoneTemp(String thermalZonePath) throws IOException {
-        String cmd = String.format("%s cat %stemp", rootAccess, thermalZonePath);
-        Process process = Runtime.getRuntime().exec(cmd);
-        BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream()));
-        String currTemp = reader.readLine();
-        if (currTemp != null) {
-            int tmpMCValue = Integer.parseInt(currTemp);
-            if (tmpMCValue < 0) tmpMCValue = 0;
-            return tmpMCValue / 1000f;
-        }
-        return (float) -1;
-    }
-
-    private String[] getCPUDeviceFiles(String cpuDeviceDirs)
-            throws IOException, InterruptedException {
-        // cpuDeviceDirs for Note10+ is usually "/sys/devices/system/cpu"
-        String cmd = String.format("%s ls %s | grep 'cpu[0-9]'", rootAccess, cpuDeviceDirs);
-        Process process = Runtime.getRuntime().exec(cmd);
-        BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream()));
-        String currLine;
-        List<String> cpuDevicePaths = new ArrayList<>();
-        while ((currLine = reader.readLine()) != null) {
-            if (currLine.matches("cpu[0-9]")) {
-                String cpuDeviceFilePath = cpuDeviceDirs + "/" + currLine + "/";
-                cpuDevicePaths.add(cpuDeviceFilePath);
+        for (int i = 0; i < cpuPolicyNodes.length; i++) {
+            for (int freq = 0; freq < previousPolicyTimes[i].length; freq++) {
+                long time = sampler.value(cpuPolicyNodes[i], freq);
+                if (time == SysfsSampler.MISSING) continue;
+                powerModel.addResidency(i, sampler.key(cpuPolicyNodes[i], freq), time - previousPolicyTimes[i][freq]);
+                previousPolicyTimes[i][freq] = time;
             }
+            powerModel.setClusterUtilization(i, cpuUtilizationSampler.getClusterUtilization(i));
+        }
+        powerModel.setGpu(getGPUFrequency(), getGPUUtilization());
+        powerModel.estimate();
+        if (powerModel.isCalibrating()) {
+            powerModel.addCalibrationSample(measuredWatts);
+        }
+        for (int i = 0; i < clusterPowerColumns.length; i++) {
+            telemetryRing.putDouble(clusterPowerColumns[i], powerModel.getClusterPowerWatts(i));
         }
+        telemetryRing.putDouble(gpuPowerColumn, powerModel.getGpuPowerWatts());
+        telemetryRing.putDouble(estimatedPowerColumn, powerModel.getTotalPowerWatts());
+    }
 
-        reader.close();
-        process.waitFor();
-        return cpuDevicePaths.toArray(new String[0]);
-    }
-
-    private Float getCPUFrequency(String cpuDevicePath) throws IOException {
-        String cmd = String.format("%s cat %s/cpufreq/scaling_cur_freq", rootAccess, cpuDevicePath);
-        Process process = Runtime.getRuntime().exec(cmd);
-        BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream()));
-        String currFreq = reader.readLine();
-        if (currFreq != null) {
-            float tempFreq = Float.parseFloat(currFreq);
-            tempFreq /= 1000000.0;
-            return tempFreq;
-        }
-        return (float) 0;
-    }
-
-    private Float getGPUFrequency(String gpuDevicePath, String freqFileName) throws IOException {
-        String cmd = String.format("%s cat %s/%s", rootAccess, gpuDevicePath, freqFileName);
-        Process process = Runtime.getRuntime().exec(cmd);
-        BufferedReader reader = new BufferedReader(new
-                InputStreamReader(process.getInputStream()));
-        String currentGPUFreq = reader.readLine();
-        if (currentGPUFreq != null) {
-            // convert to hz
-            float mhzGPUFreq = Float.parseFloat(currentGPUFreq);
-            return mhzGPUFreq / 1000;
-        }
-        return (float) 0;
-    }
-
-    private static String getCPUUtilization() throws IOException {
-        String cmd = "top -s 6";
-        Process process = Runtime.getRuntime().exec(cmd);
-        BufferedReader reader = new BufferedReader(new
-                InputStreamReader(process.getInputStream()));
-        String curr_cpu;
-        while ((curr_cpu = reader.readLine()) != null) {
-            if (curr_cpu.contains("org.tensorflow")) {
-                while (curr_cpu.contains("  ")) {
-                    curr_cpu = curr_cpu.replace("  ", " ");
-                }
-                curr_cpu = curr_cpu.replaceAll(" ", ",");
-                break;
-            }
+    private void putForecast() {
+        thermalPredictor.update(sampleNanos, powerModel.getTotalPowerWatts(), zoneTemperatures);
+        for (int role = 0; role < forecastColumns.length; role++) {
+            if (forecastColumns[role] < 0) continue;
+            telemetryRing.putDouble(forecastColumns[role], thermalPredictor.predictTemperature(
+                    deviceProfile.getThermalRoleZone(role), FORECAST_HORIZON_MS));
         }
-        List<String> cpu_util;
-        if (curr_cpu != null) {
-            cpu_util = Arrays.asList(curr_cpu.split(","));
-        } else {
-            cpu_util = Arrays.asList("-1", "-1", "-1", "-1");
+        telemetryRing.putLong(timeToThrottleColumn, thermalPredictor.getTimeToThrottleMs());
+        for (int i = 0; i < headroomColumns.length; i++) {
+            telemetryRing.putDouble(headroomColumns[i], headroomMonitor.getHeadroom(i));
         }
-        return cpu_util.get(cpu_util.size() - 4);
     }
 
-    private Float getGPUUtilization(String gpuDevicePath, String utilFileName) throws IOException {
-        String cmd = String.format("%s cat %s/%s", rootAccess, gpuDevicePath, utilFileName);
-        Process process = Runtime.getRuntime().exec(cmd);
-        BufferedReader reader = new BufferedReader(new
-                InputStreamReader(process.getInputStream()));
-        String tempReader = reader.readLine();
-        if (tempReader == null) return -1f;
-        String[] currentUtilization = tempReader.split("%");
-        String currentGPUUtilization = currentUtilization[0];
+    // Seconds spent at one frequency of a policy since the start of the experiment
+    private float getPolicyTime(int policy, int freq) {
+        long currentTime = sampler.value(cpuPolicyNodes[policy], freq);
+        if (currentTime == SysfsSampler.MISSING) return -1f;
+        return (currentTime - initialPolicyTimes[policy][freq]) / 1000f;
+    }
 
-        if (currentGPUUtilization != null) {
-            return Float.parseFloat(currentGPUUtilization);
-        }
-        return (float) 0;
+    private float getThermalZoneTemp(int node) {
+        long tmpMCValue = sampler.value(node);
+        if (tmpMCValue == SysfsSampler.MISSING) return -1f;
+        if (tmpMCValue < 0) tmpMCValue = 0;
+        return tmpMCValue / 1000f;
+    }
+
+    private float getCPUFrequency(int node) {
+        long currFreq = sampler.value(node);
+        if (currFreq == SysfsSampler.MISSING) return 0f;
+        return currFreq / 1000000f;
+    }
+
+    private float getGPUFrequency() {
+        if (gpuFrequencyNode < 0) return 0f;
+        long currentGPUFreq = sampler.value(gpuFrequencyNode);
+        if (currentGPUFreq == SysfsSampler.MISSING) return 0f;
+        return currentGPUFreq / 1000f;
     }
 
-    private Long getRelativeTime(String currTime) {
-        String[] timeStampSplit = currTime.split(":");
-        long currTimeSecs = Long.parseLong(timeStampSplit[0]) * 3600 +
-                Long.parseLong(timeStampSplit[1]) * 60 +
-                Long.parseLong(timeStampSplit[2]);
-        return currTimeSecs - startTimeSecs;
+    private float getGPUUtilization() {
+        if (gpuUtilizationNode < 0) return -1f;
+        long currentGPUUtilization = sampler.value(gpuUtilizationNode);
+        if (currentGPUUtilization == SysfsSampler.MISSING) return -1f;
+        return currentGPUUtilization;
     }
 
 
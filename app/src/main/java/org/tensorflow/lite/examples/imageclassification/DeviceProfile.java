@@ -0,0 +1,302 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The GPU and thermal zone nodes telemetry reads on this device.
+ *
+ * On the first launch the candidate nodes are probed, each thermal zone's type is read and
+ * the zones are mapped to the roles in {@link #THERMAL_ROLES}. The result is saved as JSON in
+ * the app's files directory together with Build.FINGERPRINT, and later launches with the same
+ * build load it instead of probing again.
+ */
+public class DeviceProfile {
+    private static final String TAG = "DeviceProfile";
+    private static final String FILE_NAME = "device_profile.json";
+    // Bump when the probing changes, so that old profiles are discarded
+    private static final int VERSION = 1;
+    private static final String THERMAL_DIR = "/sys/class/thermal";
+
+    // Columns of the performance CSV, matched against the zone types with contains()
+    public static final String[] THERMAL_ROLES = {"BIG", "MID", "LITTLE", "TPU", "G3D"};
+
+    // Frequency and utilization nodes of the GPUs we know, the first readable pair is used
+    private static final String[][] GPU_NODES = {
+            // Mali, e.g. Pixel 8
+            {"/sys/class/misc/mali0/device/cur_freq", "/sys/class/misc/mali0/device/utilization"},
+            // Adreno, e.g. Note10+
+            {"/sys/class/kgsl/kgsl-3d0/clock_mhz", "/sys/class/kgsl/kgsl-3d0/gpu_busy_percentage"},
+    };
+    // Factor from each GPU_NODES frequency node to MHz, Mali's is in kHz and kgsl's in MHz
+    private static final double[] GPU_FREQUENCY_TO_MHZ = {1e-3, 1};
+
+    final String fingerprint;
+    final boolean rooted;
+    // null when no known GPU node is readable
+    final String gpuFrequencyPath;
+    final String gpuUtilizationPath;
+    // Zone directories, ending with "/"
+    final String[] thermalZonePaths;
+    final String[] thermalZoneTypes;
+    // Zone index for each of THERMAL_ROLES, -1 if no zone has that role
+    final int[] thermalRoleZones;
+
+    private DeviceProfile(String fingerprint, boolean rooted, String gpuFrequencyPath,
+                          String gpuUtilizationPath, String[] thermalZonePaths,
+                          String[] thermalZoneTypes) {
+        this.fingerprint = fingerprint;
+        this.rooted = rooted;
+        this.gpuFrequencyPath = gpuFrequencyPath;
+        this.gpuUtilizationPath = gpuUtilizationPath;
+        this.thermalZonePaths = thermalZonePaths;
+        this.thermalZoneTypes = thermalZoneTypes;
+        thermalRoleZones = new int[THERMAL_ROLES.length];
+        for (int role = 0; role < THERMAL_ROLES.length; role++) {
+            thermalRoleZones[role] = -1;
+            for (int zone = 0; zone < thermalZoneTypes.length; zone++) {
+                if (thermalZoneTypes[zone].contains(THERMAL_ROLES[role])) {
+                    thermalRoleZones[role] = zone;
+                    break;
+                }
+            }
+        }
+    }
+
+    // Loads the saved profile of this build, or probes the device and saves the result
+    public static DeviceProfile load(Context context, boolean useRoot) {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        if (file.exists()) {
+            try {
+                DeviceProfile profile = fromJson(readFile(file));
+                if (profile.fingerprint.equals(Build.FINGERPRINT) && profile.rooted == useRoot) {
+                    Log.d(TAG, "Loaded " + file);
+                    return profile;
+                }
+            } catch (IOException | JSONException e) {
+                Log.w(TAG, "Discarding unreadable " + file, e);
+            }
+        }
+
+        long start = System.nanoTime();
+        DeviceProfile profile = probe(useRoot);
+        Log.d(TAG, "Probed device in " + (System.nanoTime() - start) / 1000000 + " ms");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(profile.toJson().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Cannot save " + file, e);
+        }
+        return profile;
+    }
+
+    public String getGpuFrequencyPath() {
+        return gpuFrequencyPath;
+    }
+
+    public String getGpuUtilizationPath() {
+        return gpuUtilizationPath;
+    }
+
+    // Multiply the frequency node's value by this for MHz, NaN without a known GPU node
+    public double getGpuFrequencyToMHz() {
+        for (int i = 0; i < GPU_NODES.length; i++) {
+            if (GPU_NODES[i][0].equals(gpuFrequencyPath)) return GPU_FREQUENCY_TO_MHZ[i];
+        }
+        return Double.NaN;
+    }
+
+    public int getThermalZoneCount() {
+        return thermalZonePaths.length;
+    }
+
+    public String getThermalZonePath(int zone) {
+        return thermalZonePaths[zone];
+    }
+
+    public String getThermalZoneType(int zone) {
+        return thermalZoneTypes[zone];
+    }
+
+    // Zone index of one of THERMAL_ROLES, -1 if the device has no such zone
+    public int getThermalRoleZone(int role) {
+        return thermalRoleZones[role];
+    }
+
+    private static DeviceProfile probe(boolean useRoot) {
+        RootShell shell = useRoot ? new RootShell() : null;
+        try {
+            ArrayList<String> paths = new ArrayList<>();
+            for (String[] nodes : GPU_NODES) {
+                paths.addAll(Arrays.asList(nodes));
+            }
+            String[] zoneNames = listZones();
+            for (String zoneName : zoneNames) {
+                paths.add(THERMAL_DIR + "/" + zoneName + "/type");
+            }
+
+            // Read everything in one go, through a single batched command for what the app
+            // cannot read itself
+            String[] contents = readAll(paths, shell);
+
+            String gpuFrequencyPath = null, gpuUtilizationPath = null;
+            for (int i = 0; i < GPU_NODES.length; i++) {
+                if (contents[2 * i] != null && contents[2 * i + 1] != null) {
+                    gpuFrequencyPath = GPU_NODES[i][0];
+                    gpuUtilizationPath = GPU_NODES[i][1];
+                    break;
+                }
+            }
+
+            String[] zonePaths = new String[zoneNames.length];
+            String[] zoneTypes = new String[zoneNames.length];
+            for (int i = 0; i < zoneNames.length; i++) {
+                zonePaths[i] = THERMAL_DIR + "/" + zoneNames[i] + "/";
+                String type = contents[2 * GPU_NODES.length + i];
+                zoneTypes[i] = type != null ? type : "default_zone_type";
+            }
+            return new DeviceProfile(Build.FINGERPRINT, useRoot, gpuFrequencyPath,
+                    gpuUtilizationPath, zonePaths, zoneTypes);
+        } finally {
+            if (shell != null) shell.close();
+        }
+    }
+
+    private static String[] listZones() {
+        String[] names = new File(THERMAL_DIR).list();
+        if (names == null) {
+            names = listWithShell(THERMAL_DIR);
+        }
+        ArrayList<String> zones = new ArrayList<>();
+        for (String name : names) {
+            if (name.matches("thermal_zone[0-9]+")) {
+                zones.add(name);
+            }
+        }
+        // thermal_zone2 before thermal_zone10
+        zones.sort((a, b) -> Integer.compare(Integer.parseInt(a.substring(12)),
+                Integer.parseInt(b.substring(12))));
+        return zones.toArray(new String[0]);
+    }
+
+    private static String[] listWithShell(String dir) {
+        ArrayList<String> names = new ArrayList<>();
+        try {
+            Process process = Runtime.getRuntime().exec(new String[]{"ls", dir});
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream()))) {
+                String name;
+                while ((name = reader.readLine()) != null) {
+                    names.add(name);
+                }
+            }
+            process.waitFor();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot list " + dir, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return names.toArray(new String[0]);
+    }
+
+    // First line of each file, or null if it cannot be read
+    private static String[] readAll(List<String> paths, RootShell shell) {
+        String[] contents = new String[paths.size()];
+        ArrayList<Integer> unreadable = new ArrayList<>();
+        ArrayList<String> unreadablePaths = new ArrayList<>();
+        for (int i = 0; i < paths.size(); i++) {
+            try (BufferedReader br = new BufferedReader(new FileReader(paths.get(i)))) {
+                contents[i] = nonEmpty(br.readLine());
+            } catch (IOException e) {
+                unreadable.add(i);
+                unreadablePaths.add(paths.get(i));
+            }
+        }
+        if (shell == null || unreadable.isEmpty()) return contents;
+
+        try {
+            int length = shell.run(RootShell.batchCommand(unreadablePaths));
+            String[] records = new String(shell.reply(), 0, length, StandardCharsets.UTF_8)
+                    .split(String.valueOf((char) RootShell.SEPARATOR), -1);
+            for (int i = 0; i < unreadable.size() && i < records.length; i++) {
+                String record = records[i].trim();
+                int newline = record.indexOf('\n');
+                contents[unreadable.get(i)] = nonEmpty(newline < 0 ? record : record.substring(0, newline));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read nodes through the root shell", e);
+        }
+        return contents;
+    }
+
+    private static String nonEmpty(String line) {
+        if (line == null) return null;
+        line = line.trim();
+        return line.isEmpty() ? null : line;
+    }
+
+    private String toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("version", VERSION);
+        json.put("fingerprint", fingerprint);
+        json.put("rooted", rooted);
+        json.put("gpuFrequencyPath", gpuFrequencyPath == null ? JSONObject.NULL : gpuFrequencyPath);
+        json.put("gpuUtilizationPath", gpuUtilizationPath == null ? JSONObject.NULL : gpuUtilizationPath);
+        JSONArray zonePaths = new JSONArray();
+        JSONArray zoneTypes = new JSONArray();
+        for (int i = 0; i < thermalZonePaths.length; i++) {
+            zonePaths.put(thermalZonePaths[i]);
+            zoneTypes.put(thermalZoneTypes[i]);
+        }
+        json.put("thermalZonePaths", zonePaths);
+        json.put("thermalZoneTypes", zoneTypes);
+        return json.toString(2);
+    }
+
+    private static DeviceProfile fromJson(String text) throws JSONException {
+        JSONObject json = new JSONObject(text);
+        if (json.getInt("version") != VERSION) {
+            throw new JSONException("Profile version " + json.getInt("version"));
+        }
+        JSONArray zonePaths = json.getJSONArray("thermalZonePaths");
+        JSONArray zoneTypes = json.getJSONArray("thermalZoneTypes");
+        String[] paths = new String[zonePaths.length()];
+        String[] types = new String[zonePaths.length()];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = zonePaths.getString(i);
+            types[i] = zoneTypes.getString(i);
+        }
+        return new DeviceProfile(json.getString("fingerprint"), json.getBoolean("rooted"),
+                json.isNull("gpuFrequencyPath") ? null : json.getString("gpuFrequencyPath"),
+                json.isNull("gpuUtilizationPath") ? null : json.getString("gpuUtilizationPath"),
+                paths, types);
+    }
+
+    private static String readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int offset = 0;
+            int count;
+            while (offset < bytes.length && (count = in.read(bytes, offset, bytes.length - offset)) > 0) {
+                offset += count;
+            }
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
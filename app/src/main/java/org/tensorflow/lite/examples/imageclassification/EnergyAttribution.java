@@ -0,0 +1,71 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+/**
+ * Splits the energy drawn during a sampling window across the models that ran in it.
+ *
+ * Each window, every active model reports its cumulative inference count and turn-around
+ * time. A model's share of the window's energy is its share of the inference time spent in
+ * the window, i.e. its inference count weighted by how long its inferences take, so a heavy
+ * segmenter is charged more per inference than a light classifier. If no model reports any
+ * inference time the energy is split by inference count alone.
+ */
+public class EnergyAttribution {
+    private final long[] previousCounts = new long[ThreadCpuAccounting.MAX_MODELS];
+    private final long[] previousBusyMillis = new long[ThreadCpuAccounting.MAX_MODELS];
+    private final long[] counts = new long[ThreadCpuAccounting.MAX_MODELS];
+    private final long[] busyMillis = new long[ThreadCpuAccounting.MAX_MODELS];
+    private final double[] energyJoules = new double[ThreadCpuAccounting.MAX_MODELS];
+    private double previousTotalJoules = Double.NaN;
+    private double windowJoules;
+
+    // Starts a window with the PowerSampler's cumulative energy
+    public void beginWindow(double totalJoules) {
+        windowJoules = Double.isNaN(previousTotalJoules) ? 0 : totalJoules - previousTotalJoules;
+        previousTotalJoules = totalJoules;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+            busyMillis[i] = 0;
+            energyJoules[i] = 0;
+        }
+    }
+
+    // Cumulative values of one model, called between beginWindow and endWindow
+    public void addModel(int modelIndex, long inferenceCount, long totalBusyMillis) {
+        if (modelIndex < 0 || modelIndex >= counts.length) return;
+        // The helpers reset their counters when a test restarts
+        counts[modelIndex] = inferenceCount - Math.min(previousCounts[modelIndex], inferenceCount);
+        busyMillis[modelIndex] = totalBusyMillis - Math.min(previousBusyMillis[modelIndex], totalBusyMillis);
+        previousCounts[modelIndex] = inferenceCount;
+        previousBusyMillis[modelIndex] = totalBusyMillis;
+    }
+
+    public void endWindow() {
+        long totalCount = 0, totalBusy = 0;
+        for (int i = 0; i < counts.length; i++) {
+            totalCount += counts[i];
+            totalBusy += busyMillis[i];
+        }
+        for (int i = 0; i < counts.length; i++) {
+            if (totalBusy > 0) {
+                energyJoules[i] = windowJoules * busyMillis[i] / totalBusy;
+            } else if (totalCount > 0) {
+                energyJoules[i] = windowJoules * counts[i] / totalCount;
+            }
+        }
+    }
+
+    // Energy charged to the model in the last window
+    public float getEnergyMillijoules(int modelIndex) {
+        return (float) (energyJoules[modelIndex] * 1000);
+    }
+
+    // -1 if the model ran no inference in the last window
+    public float getEnergyPerInferenceMillijoules(int modelIndex) {
+        if (counts[modelIndex] == 0) return -1f;
+        return (float) (energyJoules[modelIndex] * 1000 / counts[modelIndex]);
+    }
+
+    public long getInferenceCount(int modelIndex) {
+        return counts[modelIndex];
+    }
+}
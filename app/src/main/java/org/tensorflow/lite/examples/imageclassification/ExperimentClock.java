@@ -0,0 +1,69 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+import android.os.SystemClock;
+
+import java.time.Instant;
+
+/**
+ * The one clock of every telemetry, inference and thermal record: nanoseconds of
+ * SystemClock.elapsedRealtimeNanos() since the experiment started.
+ *
+ * The clock is monotonic, keeps counting in deep sleep and does not wrap at midnight, so rows
+ * of different files line up exactly. The wall-clock time of the start is only written once,
+ * to its own Experiment_Clock file, see {@link #clockCsv()}, so every other CSV starts with its
+ * header row.
+ */
+public final class ExperimentClock {
+    private static volatile long startElapsedNanos = SystemClock.elapsedRealtimeNanos();
+    private static volatile long startWallMillis = System.currentTimeMillis();
+
+    private ExperimentClock() {
+    }
+
+    // Called by MainActivity when an experiment starts, before any record is written
+    public static void start() {
+        startElapsedNanos = SystemClock.elapsedRealtimeNanos();
+        startWallMillis = System.currentTimeMillis();
+    }
+
+    // Nanoseconds since the start
+    public static long now() {
+        return SystemClock.elapsedRealtimeNanos() - startElapsedNanos;
+    }
+
+    public static long fromElapsedRealtimeNanos(long elapsedRealtimeNanos) {
+        return elapsedRealtimeNanos - startElapsedNanos;
+    }
+
+    // System.nanoTime() stops in deep sleep, the offset is taken at the time of the call
+    public static long fromNanoTime(long nanoTime) {
+        return nanoTime + (SystemClock.elapsedRealtimeNanos() - System.nanoTime()) - startElapsedNanos;
+    }
+
+    // ImageInfo.getTimestamp() is on the camera's timestamp source, elapsedRealtimeNanos for
+    // REALTIME sensors and the monotonic clock of System.nanoTime() for the others. The base
+    // the frame is closer to is the one it came from.
+    public static long fromCameraTimestamp(long timestampNanos) {
+        long elapsed = SystemClock.elapsedRealtimeNanos();
+        long monotonic = System.nanoTime();
+        if (Math.abs(elapsed - timestampNanos) <= Math.abs(monotonic - timestampNanos)) {
+            return timestampNanos - startElapsedNanos;
+        }
+        return timestampNanos + (elapsed - monotonic) - startElapsedNanos;
+    }
+
+    public static long getStartWallMillis() {
+        return startWallMillis;
+    }
+
+    public static long getStartElapsedRealtimeNanos() {
+        return startElapsedNanos;
+    }
+
+    // Contents of the Experiment_Clock file, the time columns of the other files count from
+    // this start
+    public static String clockCsv() {
+        return "experimentStart,startWallMillis,startElapsedRealtimeNanos\n"
+                + Instant.ofEpochMilli(startWallMillis) + ',' + startWallMillis + ',' + startElapsedNanos + '\n';
+    }
+}
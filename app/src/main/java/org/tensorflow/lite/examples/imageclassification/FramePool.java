@@ -0,0 +1,242 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A fixed set of camera frame buffers shared between the camera and the models, without
+ * locking or allocating per frame.
+ *
+ * The camera claims a free frame with {@link #acquireForWrite}, copies the RGBA plane of the
+ * image into its buffer and {@link #publish}es it as the latest frame. A model takes the
+ * latest frame with {@link #acquireLatest()} and {@link #release}s it when it is done, so a
+ * frame is never rewritten while anyone reads it. Each frame counts its references: one for
+ * being the latest and one per reader. A frame being written has a negative count and cannot
+ * be acquired, a frame whose count drops to zero is free again.
+ *
+ * With one frame per concurrent reader, one for the latest and one being written the camera
+ * always finds a free frame. Otherwise the image is dropped and counted.
+ *
+ * Models get their input from {@link Frame#getTensor}, which converts a frame once per input
+ * shape and hands the result to every model of that shape. The conversions belong to the
+ * frame and are invalid once it is recycled, their buffers are reused for the next frames.
+ */
+public class FramePool {
+    private static final int WRITING = -1;
+
+    /** A frame converted to one input shape, shared by the models of that shape. */
+    public static final class Tensor {
+        private final FrameTensorConverter converter;
+        // Sequence of the frame the buffer holds, 0 before the first conversion
+        private long sequence;
+        private Object attachment;
+
+        private Tensor(int width, int height) {
+            converter = new FrameTensorConverter(width, height);
+        }
+
+        public int getWidth() {
+            return converter.getWidth();
+        }
+
+        public int getHeight() {
+            return converter.getHeight();
+        }
+
+        // Height x width x RGB, do not modify
+        public ByteBuffer getBuffer() {
+            return converter.getBuffer();
+        }
+
+        // An object a model wraps the buffer in, e.g. a TensorImage, kept with the buffer
+        public synchronized Object getAttachment() {
+            return attachment;
+        }
+
+        // Sets the attachment unless another model was first, returns the one that is kept
+        public synchronized Object attach(Object wrapper) {
+            if (attachment == null) {
+                attachment = wrapper;
+            }
+            return attachment;
+        }
+    }
+
+    /** One buffer of the pool. The fields are only written while the frame is not published. */
+    public static final class Frame {
+        private final FramePool pool;
+        private final AtomicInteger references = new AtomicInteger();
+        private final ArrayList<Tensor> tensors = new ArrayList<>();
+        private ByteBuffer pixels;
+        private int width;
+        private int height;
+        private int rowStride;
+        private int rotation;
+        private long frameNanos;
+        private long sequence;
+
+        private Frame(FramePool pool) {
+            this.pool = pool;
+        }
+
+        // RGBA_8888, rowStride bytes per row
+        public ByteBuffer getPixels() {
+            return pixels;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getRowStride() {
+            return rowStride;
+        }
+
+        // Copies a camera plane into the frame, from the camera thread while it is written
+        public void copyFrom(ByteBuffer plane) {
+            // Restores the plane's position rather than copying from a duplicate, which would
+            // allocate a buffer per frame
+            int position = plane.position();
+            pixels.clear();
+            pixels.put(plane);
+            pixels.flip();
+            plane.position(position);
+        }
+
+        public int getRotation() {
+            return rotation;
+        }
+
+        // ExperimentClock time the frame was captured
+        public long getFrameNanos() {
+            return frameNanos;
+        }
+
+        // Increases with every published frame
+        public long getSequence() {
+            return sequence;
+        }
+
+        // The frame converted to a width x height input, by the first model that asks for
+        // the shape. Later models of the same shape wait for that conversion and share it.
+        // Only while the frame is held.
+        public Tensor getTensor(int width, int height) {
+            Tensor tensor = null;
+            synchronized (tensors) {
+                for (int i = 0; i < tensors.size(); i++) {
+                    Tensor candidate = tensors.get(i);
+                    if (candidate.getWidth() == width && candidate.getHeight() == height) {
+                        tensor = candidate;
+                        break;
+                    }
+                }
+                if (tensor == null) {
+                    tensor = new Tensor(width, height);
+                    tensors.add(tensor);
+                }
+            }
+            synchronized (tensor) {
+                if (tensor.sequence == sequence) {
+                    pool.sharedTensors.incrementAndGet();
+                } else {
+                    tensor.converter.convert(pixels, this.width, this.height, rowStride, rotation);
+                    tensor.sequence = sequence;
+                    pool.convertedTensors.incrementAndGet();
+                }
+            }
+            return tensor;
+        }
+    }
+
+    private final Frame[] frames;
+    private final AtomicReference<Frame> latest = new AtomicReference<>();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final AtomicLong convertedTensors = new AtomicLong();
+    private final AtomicLong sharedTensors = new AtomicLong();
+    private long nextSequence;
+
+    public FramePool(int frameCount) {
+        frames = new Frame[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            frames[i] = new Frame(this);
+        }
+    }
+
+    public int getFrameCount() {
+        return frames.length;
+    }
+
+    // A free frame with room for a plane of the given size, or null if every frame is in use.
+    // The buffer is only allocated for the first frames or when the frames grow. From the
+    // camera thread only.
+    public Frame acquireForWrite(int width, int height, int rowStride, int planeSize) {
+        for (Frame frame : frames) {
+            if (!frame.references.compareAndSet(0, WRITING)) continue;
+            if (frame.pixels == null || frame.pixels.capacity() < planeSize) {
+                frame.pixels = ByteBuffer.allocateDirect(planeSize);
+            }
+            frame.width = width;
+            frame.height = height;
+            frame.rowStride = rowStride;
+            return frame;
+        }
+        droppedFrames.incrementAndGet();
+        return null;
+    }
+
+    // Makes a written frame the latest one, the previous latest is released
+    public void publish(Frame frame, int rotation, long frameNanos) {
+        frame.rotation = rotation;
+        frame.frameNanos = frameNanos;
+        frame.sequence = ++nextSequence;
+        frame.references.set(1);
+        Frame previous = latest.getAndSet(frame);
+        if (previous != null) {
+            release(previous);
+        }
+    }
+
+    // Gives a claimed frame back without publishing it, e.g. when the copy failed
+    public void abort(Frame frame) {
+        frame.references.set(0);
+    }
+
+    // The latest frame, held until it is released, or null before the first one
+    public Frame acquireLatest() {
+        while (true) {
+            Frame frame = latest.get();
+            if (frame == null) return null;
+            int references = frame.references.get();
+            // Zero or negative means the frame was replaced and recycled since it was read
+            if (references > 0 && frame.references.compareAndSet(references, references + 1)) {
+                return frame;
+            }
+        }
+    }
+
+    public void release(Frame frame) {
+        frame.references.decrementAndGet();
+    }
+
+    // Camera images dropped because no frame was free
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    // Frames converted into an input tensor
+    public long getConvertedTensors() {
+        return convertedTensors.get();
+    }
+
+    // Requests for an input tensor that reused another model's conversion of the frame
+    public long getSharedTensors() {
+        return sharedTensors.get();
+    }
+}
@@ -0,0 +1,127 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts RGBA_8888 camera frames into a model's RGB uint8 input tensor in one pass.
+ *
+ * The largest centered crop with the tensor's aspect ratio is rotated upright and resized to
+ * the tensor with nearest-neighbour sampling, reading the frame's pixels in place and writing
+ * straight into a preallocated direct buffer. The source offset of every tensor row and column
+ * is looked up in two tables, which are only rebuilt when the frame size, row stride or
+ * rotation changes, so a conversion allocates nothing.
+ */
+public class FrameTensorConverter {
+    public static final int SOURCE_PIXEL_STRIDE = 4;
+    public static final int CHANNELS = 3;
+
+    private final int width;
+    private final int height;
+    private final ByteBuffer buffer;
+    // Source offsets, one part per tensor row and one per tensor column
+    private final int[] rowOffsets;
+    private final int[] columnOffsets;
+    private int sourceWidth = -1;
+    private int sourceHeight;
+    private int sourceRowStride;
+    private int sourceRotation;
+
+    public FrameTensorConverter(int width, int height) {
+        this.width = width;
+        this.height = height;
+        buffer = ByteBuffer.allocateDirect(width * height * CHANNELS);
+        rowOffsets = new int[height];
+        columnOffsets = new int[width];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // The tensor, height x width x RGB, overwritten in place by every conversion
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    // Rotates the frame clockwise by rotationDegrees, a multiple of 90, like
+    // ImageInfo.getRotationDegrees() asks for
+    public void convert(ByteBuffer rgba, int frameWidth, int frameHeight, int rowStride, int rotationDegrees) {
+        int rotation = ((rotationDegrees % 360) + 360) % 360;
+        if (frameWidth != sourceWidth || frameHeight != sourceHeight || rowStride != sourceRowStride
+                || rotation != sourceRotation) {
+            buildTables(frameWidth, frameHeight, rowStride, rotation);
+        }
+        int out = 0;
+        for (int y = 0; y < height; y++) {
+            int rowOffset = rowOffsets[y];
+            for (int x = 0; x < width; x++) {
+                int pixel = rowOffset + columnOffsets[x];
+                buffer.put(out, rgba.get(pixel));
+                buffer.put(out + 1, rgba.get(pixel + 1));
+                buffer.put(out + 2, rgba.get(pixel + 2));
+                out += CHANNELS;
+            }
+        }
+    }
+
+    private void buildTables(int frameWidth, int frameHeight, int rowStride, int rotation) {
+        if (rotation % 90 != 0) {
+            throw new IllegalArgumentException("Rotation " + rotation + " is not a multiple of 90");
+        }
+        // After a quarter turn the tensor's rows run along the frame's columns
+        boolean quarterTurn = rotation == 90 || rotation == 270;
+        int aspectWidth = quarterTurn ? height : width;
+        int aspectHeight = quarterTurn ? width : height;
+        int cropWidth = frameWidth;
+        int cropHeight = (int) ((long) frameWidth * aspectHeight / aspectWidth);
+        if (cropHeight > frameHeight) {
+            cropHeight = frameHeight;
+            cropWidth = (int) ((long) frameHeight * aspectWidth / aspectHeight);
+        }
+        int left = (frameWidth - cropWidth) / 2;
+        int top = (frameHeight - cropHeight) / 2;
+
+        int columnSpan = quarterTurn ? cropHeight : cropWidth;
+        for (int x = 0; x < width; x++) {
+            int along = (int) (((long) x * columnSpan + columnSpan / 2) / width);
+            switch (rotation) {
+                case 0:
+                    columnOffsets[x] = (left + along) * SOURCE_PIXEL_STRIDE;
+                    break;
+                case 90:
+                    columnOffsets[x] = (top + cropHeight - 1 - along) * rowStride;
+                    break;
+                case 180:
+                    columnOffsets[x] = (left + cropWidth - 1 - along) * SOURCE_PIXEL_STRIDE;
+                    break;
+                default:
+                    columnOffsets[x] = (top + along) * rowStride;
+            }
+        }
+        int rowSpan = quarterTurn ? cropWidth : cropHeight;
+        for (int y = 0; y < height; y++) {
+            int along = (int) (((long) y * rowSpan + rowSpan / 2) / height);
+            switch (rotation) {
+                case 0:
+                    rowOffsets[y] = (top + along) * rowStride;
+                    break;
+                case 90:
+                    rowOffsets[y] = (left + along) * SOURCE_PIXEL_STRIDE;
+                    break;
+                case 180:
+                    rowOffsets[y] = (top + cropHeight - 1 - along) * rowStride;
+                    break;
+                default:
+                    rowOffsets[y] = (left + cropWidth - 1 - along) * SOURCE_PIXEL_STRIDE;
+            }
+        }
+        sourceWidth = frameWidth;
+        sourceHeight = frameHeight;
+        sourceRowStride = rowStride;
+        sourceRotation = rotation;
+    }
+}
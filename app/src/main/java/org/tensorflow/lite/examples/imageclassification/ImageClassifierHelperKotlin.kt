@@ -16,27 +16,31 @@
 package org.tensorflow.lite.examples.imageclassification
 
 import android.content.Context
-import android.graphics.Bitmap
+import android.os.Process
 import android.os.SystemClock
 import android.util.Log
 import androidx.lifecycle.ViewModel
 import androidx.lifecycle.viewModelScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
-import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
 import org.tensorflow.lite.examples.imageclassification.fragments.DynamicBitmapSource
 import org.tensorflow.lite.gpu.CompatibilityList
-import org.tensorflow.lite.support.image.ImageProcessor
+import org.tensorflow.lite.DataType
+import org.tensorflow.lite.support.common.FileUtil
+import org.tensorflow.lite.support.image.ColorSpaceType
 import org.tensorflow.lite.support.image.TensorImage
-import org.tensorflow.lite.support.image.ops.Rot90Op
+import org.tensorflow.lite.support.metadata.MetadataExtractor
+import org.tensorflow.lite.support.tensorbuffer.TensorBuffer
 import org.tensorflow.lite.task.core.BaseOptions
+import org.tensorflow.lite.task.core.vision.ImageProcessingOptions
 import org.tensorflow.lite.task.vision.classifier.Classifications
 import org.tensorflow.lite.task.vision.classifier.ImageClassifier
 import org.tensorflow.lite.task.vision.classifier.ImageClassifier.ImageClassifierOptions
 import org.tensorflow.lite.task.vision.segmenter.ImageSegmenter
 import org.tensorflow.lite.task.vision.segmenter.OutputType
+import java.io.IOException
 import java.lang.IllegalStateException
 import kotlin.math.max
 
@@ -47,7 +51,8 @@ class ImageClassifierHelperKotlin(
     private val bitmapSource: DynamicBitmapSource?,
     private val index: Int,
     private val currentModel: Int,
-    private val periodOptions: List<String>
+    private val periodOptions: List<String>,
+    private val threadAccounting: ThreadCpuAccounting?
 ) : ViewModel() {
     var threshold: Float = 0.5f
     var numThreads: Int = 2
@@ -67,6 +72,28 @@ class ImageClassifierHelperKotlin(
     private var executionCount = 0
     private var imageClassifier: ImageClassifier? = null
     private var imageSegmenter: ImageSegmenter? = null
+    private var claimedTid = 0
+    private var previousStartNanos: Long = 0
+    // Sequence of the last frame this model classified, a frame is never classified twice
+    private var lastSequence: Long = 0
+    // Rest of the task period after the last inference, waited out once the frame is released
+    private var timeLeftInPeriod: Long = 0
+
+    // Recorded on the inference threads, snapshotted by the throughput writer. The latency
+    // runs from the frame being handed over to the listener returning.
+    private val latencyStats = StreamingStats("latency", 1e6, STATS_WINDOW_INTERVALS)
+    private val periodStats = StreamingStats("period", 1e6, STATS_WINDOW_INTERVALS)
+    private val queueDelayStats = StreamingStats("queueDelay", 1e6, STATS_WINDOW_INTERVALS)
+    private val allStats = arrayOf(latencyStats, periodStats, queueDelayStats)
+    private val stages = InferenceStages(index, STATS_WINDOW_INTERVALS)
+    // Height and width of the model's input tensor, read from the model file once. The Task
+    // Library does not resize a frame converted to it again.
+    private val inputShape = readInputShape()
+    // Frames are rotated upright before inference, the default options are built once instead
+    // of on every classify(TensorImage) call
+    private val processingOptions = ImageProcessingOptions.builder().build()
+    // One slice per inference on this model's track of the trace, when there is one
+    private var traceExporter: TraceExporter? = null
 
     /** Helper class for wrapping Image Classification actions  */
     init {
@@ -129,6 +156,35 @@ class ImageClassifierHelperKotlin(
     fun getAvgMeasuredPeriod(): Long {
         return totalMeasuredPeriod / max(1, executionCount)
     }
+
+    fun setTraceExporter(exporter: TraceExporter?) {
+        exporter?.setTrackName(index, modelName)
+        traceExporter = exporter
+    }
+
+    fun getInferenceCount(): Int {
+        return executionCount
+    }
+
+    // Sum of all turn-around times in ms, used to split energy between models
+    fun getTotalTurnAroundTime(): Long {
+        return totalTurnAroundTime
+    }
+
+    // Closes the current interval of the statistics and appends their values, in the order
+    // of statsHeader() and without a trailing comma
+    fun snapshotStats(row: StringBuilder) {
+        for (stats in allStats) {
+            stats.snapshot()
+            stats.appendValues(row)
+        }
+        row.setLength(row.length - 1)
+    }
+
+    // Closes the interval of the stage statistics and writes a row per stage
+    fun snapshotStages(writer: TelemetryWriter, stream: TelemetryWriter.Stream, time: Long, row: StringBuilder) {
+        stages.snapshot(writer, stream, time, row)
+    }
     
     private fun setupImageClassifier() {
         val optionsBuilder = ImageClassifierOptions.builder()
@@ -154,6 +210,8 @@ class ImageClassifierHelperKotlin(
 
         val modelName = modelName
 
+        // Threads started by TFLite while the interpreter is created belong to this model
+        threadAccounting?.beginSpawnWindow(index)
         try {
             imageClassifier = ImageClassifier.createFromFileAndOptions(
                 context,
@@ -170,6 +228,7 @@ class ImageClassifierHelperKotlin(
                         + e.message
             )
         }
+        threadAccounting?.endSpawnWindow(index)
     }
 
     private fun setupImageSegmenter() {
@@ -208,6 +267,7 @@ class ImageClassifierHelperKotlin(
         where each pixel has a confidence score applied to it from 0.0f to 1.0f
          */
         optionsBuilder.setOutputType(OutputType.CATEGORY_MASK)
+        threadAccounting?.beginSpawnWindow(index)
         try {
             imageSegmenter =
                     ImageSegmenter.createFromFileAndOptions(
@@ -221,10 +281,12 @@ class ImageClassifierHelperKotlin(
             )
             Log.e(TAG, "TFLite failed to load model with error: " + e.message)
         }
+        threadAccounting?.endSpawnWindow(index)
     }
     private fun resetRtData() {
         executionCount = 0
         currentThroughput = 0
+        previousStartNanos = 0
     }
 
     fun startCollect() = runBlocking <Unit>{
@@ -241,106 +303,205 @@ class ImageClassifierHelperKotlin(
     }
 
     private suspend fun collectStream() {
+        val source = bitmapSource ?: return
         job = viewModelScope.launch(Dispatchers.IO) {
-            bitmapSource?.bitmapStream?.collect {
-                if (it != null && run) {
-                    classify(it.latestBitmap, it.latestImageRotation)
-
+            source.bitmapStream.collect {
+                if (run) {
+                    // The frame is not rewritten until it is released
+                    val frame = source.acquireFrame() ?: return@collect
+                    var classified = false
+                    try {
+                        // A frame published after the one that woke us up was already taken,
+                        // the wake-up for it finds nothing newer
+                        if (frame.sequence > lastSequence) {
+                            lastSequence = frame.sequence
+                            classify(frame)
+                            classified = true
+                        }
+                    } finally {
+                        source.releaseFrame(frame)
+                    }
+                    // Idle without the frame, so it does not keep a pool slot and its tensors
+                    if (classified) {
+                        waitForNextPeriod()
+                    }
                 }
             }
         }
     }
 
     @Throws(InterruptedException::class)
-    fun classify(image: Bitmap?, imageRotation: Int) {
+    fun classify(frame: FramePool.Frame) {
         if (currentModel == MODEL_DEEPLABV3){
-            segment(image, imageRotation)
+            segment(frame)
             return
         }
+        val handedNanos = stages.endAcquire()
 
         if (imageClassifier == null) {
             setupImageClassifier()
         }
-
-        // Create preprocessor for the image.
-        // See https://www.tensorflow.org/lite/inference_with_metadata/
-        //            lite_support#imageprocessor_architecture
-        val imageProcessor = ImageProcessor.Builder().add(Rot90Op(-imageRotation / 90)).build()
-
-        // Preprocess the image and convert it into a TensorImage for classification.
-        val tensorImage = imageProcessor.process(TensorImage.fromBitmap(image))
+        claimInferenceThread()
+        recordStart(frame.frameNanos, handedNanos)
+
+        // Stages end in finally, a Trace section left open would swallow the later ones.
+        // Crop, rotate and resize the camera frame straight into the input tensor
+        var stageStart = stages.begin(InferenceStages.PREPROCESS)
+        val inputImage = try {
+            convertFrame(frame)
+        } finally {
+            stages.end(InferenceStages.PREPROCESS, stageStart)
+        }
 
         // Inference time is the difference between the system time at the start
         // and finish of the process
         val startTime = SystemClock.uptimeMillis()
+        stageStart = stages.begin(InferenceStages.INFERENCE)
         // Classify the input image
-        val result = imageClassifier?.classify(tensorImage)
+        val result = try {
+            imageClassifier?.classify(inputImage, processingOptions)
+        } finally {
+            stages.end(InferenceStages.INFERENCE, stageStart)
+        }
         // Calculate the turn around time: Made up of queue time + inference time
         val turnAroundTime = SystemClock.uptimeMillis() - startTime
-        // Increment the total inferences executed
-        executionCount++
 
-        val timeLeftInPeriod = taskPeriod - turnAroundTime
-        measuredPeriod = if (timeLeftInPeriod >= 0) taskPeriod else turnAroundTime
-        if (timeLeftInPeriod > 0) {
-            runBlocking {
-                delay(timeLeftInPeriod)
-            }
-        }
-        measuredTurnAroundTime = turnAroundTime
-        totalMeasuredPeriod += measuredPeriod
-        totalTurnAroundTime += turnAroundTime
-        currentThroughput = if (measuredPeriod == 0L) 0;
-        else 1000 / measuredPeriod
-        totalThroughputTime += currentThroughput
-
-        imageClassifierListener?.onResults(turnAroundTime, index)
+        completeInference(turnAroundTime, handedNanos)
     }
 
     @Throws(InterruptedException::class)
-    fun segment(image: Bitmap?, imageRotation: Int) {
+    fun segment(frame: FramePool.Frame) {
+        val handedNanos = stages.endAcquire()
 
         if (imageSegmenter == null) {
             setupImageSegmenter()
         }
-
-        // Create preprocessor for the image.
-        // See https://www.tensorflow.org/lite/inference_with_metadata/
-        //            lite_support#imageprocessor_architecture
-        val imageProcessor =
-                ImageProcessor.Builder()
-                        .add(Rot90Op(-imageRotation / 90))
-                        .build()
-
-        // Preprocess the image and convert it into a TensorImage for segmentation.
-        val tensorImage = imageProcessor.process(TensorImage.fromBitmap(image))
+        claimInferenceThread()
+        recordStart(frame.frameNanos, handedNanos)
+
+        // Crop, rotate and resize the camera frame straight into the input tensor
+        var stageStart = stages.begin(InferenceStages.PREPROCESS)
+        val inputImage = try {
+            convertFrame(frame)
+        } finally {
+            stages.end(InferenceStages.PREPROCESS, stageStart)
+        }
 
         // Inference time is the difference between the system time at the start
         // and finish of the process
         val startTime = SystemClock.uptimeMillis()
+        stageStart = stages.begin(InferenceStages.INFERENCE)
 
-        val segmentResult = imageSegmenter?.segment(tensorImage)
+        val segmentResult = try {
+            imageSegmenter?.segment(inputImage, processingOptions)
+        } finally {
+            stages.end(InferenceStages.INFERENCE, stageStart)
+        }
 
         // Calculate the turn around time: Made up of queue time + inference time
         val turnAroundTime = SystemClock.uptimeMillis() - startTime
-        // Increment the total inferences executed
-        executionCount++
 
-        val timeLeftInPeriod = taskPeriod - turnAroundTime
-        measuredPeriod = if (timeLeftInPeriod >= 0) taskPeriod else turnAroundTime
-        if (timeLeftInPeriod > 0) {
-            runBlocking {
-                delay(timeLeftInPeriod)
+        completeInference(turnAroundTime, handedNanos)
+    }
+
+    // The frame as this model's input, converted once for all models of the same input size
+    // and valid while the frame is held. The TensorImage wrapping the shared buffer is created
+    // by the first model that uses it and kept with the buffer.
+    private fun convertFrame(frame: FramePool.Frame): TensorImage {
+        val tensor = frame.getTensor(inputShape[1], inputShape[0])
+        (tensor.attachment as? TensorImage)?.let { return it }
+        val image = TensorImage(DataType.UINT8).apply {
+            val buffer = TensorBuffer.createFixedSize(
+                intArrayOf(tensor.height, tensor.width, FrameTensorConverter.CHANNELS),
+                DataType.UINT8
+            )
+            buffer.loadBuffer(tensor.buffer)
+            load(buffer, ColorSpaceType.RGB)
+        }
+        return tensor.attach(image) as TensorImage
+    }
+
+    // Height and width of the input tensor, NHWC in the model. Falls back to the size of the
+    // model in inputSize() when the file cannot be read.
+    private fun readInputShape(): IntArray {
+        try {
+            val shape = MetadataExtractor(FileUtil.loadMappedFile(context, modelName))
+                .getInputTensorShape(0)
+            if (shape.size == 4) {
+                return intArrayOf(shape[1], shape[2])
             }
+            Log.w(TAG, "Unexpected input shape ${shape.contentToString()} of $modelName")
+        } catch (e: IOException) {
+            Log.w(TAG, "Cannot read the input shape of $modelName", e)
+        } catch (e: IllegalArgumentException) {
+            Log.w(TAG, "Cannot parse $modelName", e)
+        }
+        val side = inputSize(currentModel)
+        return intArrayOf(side, side)
+    }
+
+    // Counters and listener dispatch, shared by classify and segment. The wait for the next
+    // period is left to waitForNextPeriod(), after the frame is released.
+    private fun completeInference(turnAroundTime: Long, handedNanos: Long) {
+        var stageStart = stages.begin(InferenceStages.POSTPROCESS)
+        try {
+            // Increment the total inferences executed
+            executionCount++
+
+            timeLeftInPeriod = taskPeriod - turnAroundTime
+            measuredPeriod = if (timeLeftInPeriod >= 0) taskPeriod else turnAroundTime
+            measuredTurnAroundTime = turnAroundTime
+            totalMeasuredPeriod += measuredPeriod
+            totalTurnAroundTime += turnAroundTime
+            currentThroughput = if (measuredPeriod == 0L) 0;
+            else 1000 / measuredPeriod
+            totalThroughputTime += currentThroughput
+        } finally {
+            stages.end(InferenceStages.POSTPROCESS, stageStart)
         }
-        measuredTurnAroundTime = turnAroundTime
-        totalMeasuredPeriod += measuredPeriod
-        totalTurnAroundTime += turnAroundTime
-        currentThroughput = if (measuredPeriod == 0L) 0;
-        else 1000 / measuredPeriod
-        totalThroughputTime += currentThroughput
 
-        imageClassifierListener?.onResults(turnAroundTime, index)
+        stageStart = stages.begin(InferenceStages.DISPATCH)
+        var endNanos: Long
+        try {
+            imageClassifierListener?.onResults(turnAroundTime, index)
+        } finally {
+            endNanos = stages.end(InferenceStages.DISPATCH, stageStart)
+        }
+        latencyStats.record(endNanos - handedNanos)
+        traceExporter?.recordSlice(index, handedNanos, endNanos)
+    }
+
+    // Waits out the rest of the task period after classify or segment returned and the frame
+    // was released, then starts waiting for the next frame. Sleeps on the collector's IO thread,
+    // runBlocking { delay() } allocated an event loop and a timer task for every wait.
+    @Throws(InterruptedException::class)
+    fun waitForNextPeriod() {
+        if (timeLeftInPeriod > 0) {
+            Thread.sleep(timeLeftInPeriod)
+            timeLeftInPeriod = 0
+        }
+        stages.beginAcquire()
+    }
+
+    // Records the time since the previous inference and since the frame arrived
+    private fun recordStart(frameNanos: Long, startNanos: Long) {
+        if (previousStartNanos != 0L) {
+            periodStats.record(startNanos - previousStartNanos)
+        }
+        if (frameNanos != 0L) {
+            queueDelayStats.record(startNanos - frameNanos)
+        }
+        previousStartNanos = startNanos
+    }
+
+    // Attributes the CPU time of the thread running this inference to this model. Collectors
+    // run on Dispatchers.IO, so the thread can change between inferences.
+    private fun claimInferenceThread() {
+        val tid = Process.myTid()
+        if (tid != claimedTid) {
+            threadAccounting?.claimThread(tid, index)
+            claimedTid = tid
+        }
     }
 
     fun clearImageClassifier() {
@@ -387,6 +548,19 @@ class ImageClassifierHelperKotlin(
 
     companion object {
         private const val TAG = "ImageClassifierHelper"
+        // Percentiles cover the last 20 snapshots, 10 s at the throughput writer's rate
+        private const val STATS_WINDOW_INTERVALS = 20
+
+        // Columns of snapshotStats(), without a trailing comma
+        @JvmStatic
+        fun statsHeader(): String {
+            val header = StringBuilder()
+            StreamingStats.appendHeader(header, "latency")
+            StreamingStats.appendHeader(header, "period")
+            StreamingStats.appendHeader(header, "queueDelay")
+            header.setLength(header.length - 1)
+            return header.toString()
+        }
         private const val DELEGATE_CPU = 0
         private const val DELEGATE_GPU = 1
         private const val DELEGATE_NNAPI = 2
@@ -396,5 +570,17 @@ class ImageClassifierHelperKotlin(
         private const val MODEL_EFFICIENTNETV1 = 2
         private const val MODEL_EFFICIENTNETV2 = 3
         private const val MODEL_DEEPLABV3 = 4
+
+        // Input tensor side of each bundled model, all of them take square RGB images. Only a
+        // fallback for when the shape cannot be read from the model file.
+        @JvmStatic
+        fun inputSize(model: Int): Int {
+            return when (model) {
+                MODEL_EFFICIENTNETV1 -> 240
+                MODEL_EFFICIENTNETV2 -> 260
+                MODEL_DEEPLABV3 -> 257
+                else -> 224
+            }
+        }
     }
 }
\ No newline at end of file
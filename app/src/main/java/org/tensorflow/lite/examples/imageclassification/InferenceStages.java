@@ -0,0 +1,91 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+import android.os.Trace;
+
+/**
+ * Nanosecond timing of the stages of one model's inferences.
+ *
+ * Every stage is timed with {@link ExperimentClock}, recorded into a {@link StreamingStats} and
+ * wrapped in an android.os.Trace section named e.g. "model2:inference", so that Perfetto
+ * captures show the same spans. Waiting for a frame spans two calls that may run on different
+ * threads, so it is an async section instead. Section names are built once and nothing is
+ * allocated per inference.
+ */
+public class InferenceStages {
+    public static final int ACQUIRE = 0;
+    public static final int PREPROCESS = 1;
+    public static final int INFERENCE = 2;
+    public static final int POSTPROCESS = 3;
+    public static final int DISPATCH = 4;
+    public static final String[] STAGE_NAMES = {"acquire", "preprocess", "inference", "postprocess", "dispatch"};
+
+    private final int modelIndex;
+    private final String[] sectionNames = new String[STAGE_NAMES.length];
+    private final StreamingStats[] stats = new StreamingStats[STAGE_NAMES.length];
+    private long acquireStartNanos;
+    private int acquireCookie;
+
+    public InferenceStages(int modelIndex, int windowIntervals) {
+        this.modelIndex = modelIndex;
+        for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+            sectionNames[stage] = "model" + modelIndex + ":" + STAGE_NAMES[stage];
+            stats[stage] = new StreamingStats(STAGE_NAMES[stage], 1e6, windowIntervals);
+        }
+    }
+
+    // Starts a stage on the calling thread, returns its start time. End it in a finally block,
+    // the Trace section stays open otherwise.
+    public long begin(int stage) {
+        Trace.beginSection(sectionNames[stage]);
+        return ExperimentClock.now();
+    }
+
+    // Ends the stage begun last on this thread, returns the end time
+    public long end(int stage, long beginNanos) {
+        long now = ExperimentClock.now();
+        Trace.endSection();
+        stats[stage].record(now - beginNanos);
+        return now;
+    }
+
+    // The model is ready for its next frame
+    public void beginAcquire() {
+        acquireStartNanos = ExperimentClock.now();
+        Trace.beginAsyncSection(sectionNames[ACQUIRE], ++acquireCookie);
+    }
+
+    // The next frame was handed to the model, returns the time
+    public long endAcquire() {
+        long now = ExperimentClock.now();
+        if (acquireStartNanos != 0) {
+            Trace.endAsyncSection(sectionNames[ACQUIRE], acquireCookie);
+            stats[ACQUIRE].record(now - acquireStartNanos);
+            acquireStartNanos = 0;
+        }
+        return now;
+    }
+
+    public StreamingStats getStats(int stage) {
+        return stats[stage];
+    }
+
+    // Closes the statistics' interval and writes one row per stage that ran in it
+    public void snapshot(TelemetryWriter writer, TelemetryWriter.Stream stream, long time, StringBuilder row) {
+        for (int stage = 0; stage < stats.length; stage++) {
+            stats[stage].snapshot();
+            if (stats[stage].getCount() == 0) continue;
+            row.setLength(0);
+            row.append(time).append(',')
+                    .append(modelIndex).append(',')
+                    .append(STAGE_NAMES[stage]).append(',');
+            stats[stage].appendValues(row);
+            row.setCharAt(row.length() - 1, '\n');
+            writer.write(stream, row);
+        }
+    }
+
+    // Header of the rows of snapshot()
+    public static String header() {
+        return "time,modelIndex,stage,count,min,p50,p95,p99,max,mean,ewma\n";
+    }
+}
@@ -0,0 +1,86 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative longs with logarithmic buckets, recordable from any thread.
+ *
+ * Values below 2^(subBucketBits + 1) have a bucket each. Above that every power of two is
+ * split into 2^subBucketBits buckets, so a bucket is never wider than 1/2^subBucketBits of its
+ * values, as in HdrHistogram. DEFAULT_SUB_BUCKET_BITS (about 6%) is enough for latencies,
+ * PRECISE_SUB_BUCKET_BITS (under 1%) resolves e.g. millidegrees and kHz of telemetry. Values
+ * of 2^MAX_EXPONENT and more, about 18 minutes in nanoseconds, share the last bucket.
+ */
+public class LogHistogram {
+    public static final int DEFAULT_SUB_BUCKET_BITS = 4;
+    public static final int PRECISE_SUB_BUCKET_BITS = 7;
+    static final int MAX_EXPONENT = 40;
+
+    final int subBucketBits;
+    private final int subBuckets;
+    // The last one holds everything from 2^MAX_EXPONENT up
+    final int bucketCount;
+
+    final AtomicLongArray counts;
+    final AtomicLong count = new AtomicLong();
+    final AtomicLong sum = new AtomicLong();
+    final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    public LogHistogram() {
+        this(DEFAULT_SUB_BUCKET_BITS);
+    }
+
+    public LogHistogram(int subBucketBits) {
+        this.subBucketBits = subBucketBits;
+        subBuckets = 1 << subBucketBits;
+        bucketCount = bucketCount(subBucketBits);
+        counts = new AtomicLongArray(bucketCount);
+    }
+
+    static int bucketCount(int subBucketBits) {
+        return (MAX_EXPONENT - subBucketBits + 1) * (1 << subBucketBits) + 1;
+    }
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value < (current = min.get()) && !min.compareAndSet(current, value)) {
+            // Retry, another thread changed the minimum
+        }
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry, another thread changed the maximum
+        }
+    }
+
+    // Only while nothing records into the histogram
+    void reset() {
+        for (int i = 0; i < bucketCount; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(Long.MIN_VALUE);
+    }
+
+    int bucketOf(long value) {
+        if (value < 2 * subBuckets) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) return bucketCount - 1;
+        int shift = exponent - subBucketBits;
+        return (shift + 1) * subBuckets + (int) (value >>> shift) - subBuckets;
+    }
+
+    // The middle of a bucket's values
+    long valueOf(int bucket) {
+        if (bucket < 2 * subBuckets) return bucket;
+        int shift = (bucket >>> subBucketBits) - 1;
+        long lowest = (long) ((bucket & (subBuckets - 1)) + subBuckets) << shift;
+        return lowest + ((1L << shift) >>> 1);
+    }
+}
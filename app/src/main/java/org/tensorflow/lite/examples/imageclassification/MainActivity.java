@@ -21,6 +21,7 @@ import static java.lang.Runtime.getRuntime;
 import android.annotation.SuppressLint;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.PowerManager;
 import android.os.Environment;
 
 import androidx.annotation.Nullable;
@@ -28,6 +29,7 @@ import androidx.appcompat.app.AppCompatActivity;
 
 import org.tensorflow.lite.examples.imageclassification.databinding.ActivityMainBinding;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -48,7 +50,11 @@ TODO: Experiment specification
 public class MainActivity extends AppCompatActivity {
     PFManager pfManager;
     DataProcessor dataProcessor;
-    String currentThermalStatus = "None";
+    TelemetryWriter telemetryWriter;
+    PowerSampler powerSampler;
+    ThermalHeadroomMonitor headroomMonitor;
+    // PowerManager.THERMAL_STATUS_*, written by PFManager from a binder thread
+    volatile int currentThermalStatus = PowerManager.THERMAL_STATUS_NONE;
     String currentFolder;
     String documentsFolder;
     String experiment_time;
@@ -56,6 +62,22 @@ public class MainActivity extends AppCompatActivity {
     public String get_exeriment_time(){
         return experiment_time;
     }
+
+    public TelemetryWriter getTelemetryWriter() {
+        return telemetryWriter;
+    }
+
+    public PowerSampler getPowerSampler() {
+        return powerSampler;
+    }
+
+    public DataProcessor getDataProcessor() {
+        return dataProcessor;
+    }
+
+    public ThermalHeadroomMonitor getHeadroomMonitor() {
+        return headroomMonitor;
+    }
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -69,6 +91,8 @@ public class MainActivity extends AppCompatActivity {
             throw new RuntimeException(e);
         }
 
+        // Every record of this experiment is timed from here
+        ExperimentClock.start();
         @SuppressLint("SimpleDateFormat") SimpleDateFormat dateFormat = new SimpleDateFormat("HH:mm:ss");
         String fileSeries = dateFormat.format(new Date());
         String[] timeStampSplit = fileSeries.split(":");
@@ -76,6 +100,15 @@ public class MainActivity extends AppCompatActivity {
 
         currentFolder = Objects.requireNonNull(getExternalFilesDir(null)).getAbsolutePath();
         documentsFolder = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOCUMENTS).getAbsolutePath();
+        telemetryWriter = new TelemetryWriter(TelemetryWriter.DEFAULT_FLUSH_INTERVAL_MS);
+        // When the experiment started, the time column of every other file counts from here
+        telemetryWriter.open(documentsFolder + File.separator + "Experiment_Clock" + experiment_time + ".csv",
+                ExperimentClock.clockCsv());
+        powerSampler = new PowerSampler(this, PowerSampler.DEFAULT_PERIOD_MS);
+        powerSampler.start();
+        headroomMonitor = new ThermalHeadroomMonitor(this, telemetryWriter,
+                documentsFolder + File.separator + "Thermal_Events" + experiment_time + ".csv");
+        headroomMonitor.start();
         dataProcessor = new DataProcessor(this);
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
@@ -111,9 +144,23 @@ public class MainActivity extends AppCompatActivity {
             }
         }
 
+        // Get everything collected so far on disk in case we don't come back, without blocking
+        // the main thread on the writer
+        dataProcessor.flush();
+        telemetryWriter.requestFlush();
+
         super.onPause();
     }
 
+    @Override
+    protected void onDestroy() {
+        powerSampler.stop();
+        headroomMonitor.stop();
+        // Closes the telemetry writer after the actor's last rows
+        dataProcessor.stop();
+        super.onDestroy();
+    }
+
     @Override
     public void onBackPressed() {
         if (Build.VERSION.SDK_INT == Build.VERSION_CODES.Q) {
@@ -37,14 +37,10 @@ public class PFManager implements PowerManager.OnThermalStatusChangedListener {
     }
 
     // Thermal status change listener.
+    // Runs on a binder thread, the sample is taken on the telemetry actor's thread
     public void onThermalStatusChanged(int i) {
-        try {
-            System.out.println("Thermal Status: " + i);
-            mainActivity.currentThermalStatus = getThermalStatusName(i);
-            dataProcessor.processDataCollection();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        System.out.println("Thermal Status: " + i);
+        dataProcessor.onThermalStatusChanged(i);
     }
 
     public boolean registerListener(Context context) {
@@ -73,7 +69,7 @@ public class PFManager implements PowerManager.OnThermalStatusChangedListener {
         }
     }
 
-    private String getThermalStatusName(int status) {
+    static String getThermalStatusName(int status) {
         String currentStatus = "Unknown";
         switch (status) {
             case PowerManager.THERMAL_STATUS_NONE:
@@ -0,0 +1,418 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Estimates the SoC power from the CPU frequencies and utilization, for devices whose battery
+ * current is not usable.
+ *
+ * Each cluster draws C*V^2*f*util per core, with f averaged over the time_in_state residency of
+ * the sampling window and V interpolated linearly between the cluster's minimum and maximum
+ * frequency. The GPU draws C*V^2*(f/fmax)*util and a constant covers the static power. The
+ * capacitances and the static power come from {@link #DEVICES}, or from a calibration that fits
+ * them by least squares against the measured battery power, see {@link #startCalibration()}.
+ * A calibration is saved in the app's files directory and reused on the same build.
+ *
+ * All per-sample methods are allocation-free and must be called from one thread.
+ */
+public class PowerModel {
+    private static final String TAG = "PowerModel";
+    private static final String FILE_NAME = "power_model.json";
+    private static final int VERSION = 1;
+    // Fewer samples than this do not constrain the coefficients
+    public static final int MIN_CALIBRATION_SAMPLES = 60;
+    // Pulls the fit towards the table coefficients when a feature barely varies
+    private static final double RIDGE = 0.01;
+
+    /** Starting coefficients of one SoC, clusters from LITTLE to BIG. */
+    private static final class Device {
+        final String name;
+        final String[] boards;
+        // nF per core, P = C*V^2*f with V in volts and f in GHz
+        final double[] capacitance;
+        final double[] minVoltage;
+        final double[] maxVoltage;
+        // W at full load and maximum frequency, divided by the maximum voltage squared
+        final double gpuCoefficient;
+        final double gpuMinVoltage;
+        final double gpuMaxVoltage;
+        // In the unit of the gpuFrequency column, 0 to use the highest frequency seen
+        final double gpuMaxFrequency;
+        final double staticWatts;
+
+        Device(String name, String[] boards, double[] capacitance, double[] minVoltage,
+               double[] maxVoltage, double gpuCoefficient, double gpuMinVoltage,
+               double gpuMaxVoltage, double gpuMaxFrequency, double staticWatts) {
+            this.name = name;
+            this.boards = boards;
+            this.capacitance = capacitance;
+            this.minVoltage = minVoltage;
+            this.maxVoltage = maxVoltage;
+            this.gpuCoefficient = gpuCoefficient;
+            this.gpuMinVoltage = gpuMinVoltage;
+            this.gpuMaxVoltage = gpuMaxVoltage;
+            this.gpuMaxFrequency = gpuMaxFrequency;
+            this.staticWatts = staticWatts;
+        }
+    }
+
+    // Rough published figures, calibrate for anything quantitative. The last entry is used
+    // for boards that are not listed.
+    private static final Device[] DEVICES = {
+            // Tensor G3, Pixel 8 and 8 Pro. Mali cur_freq is in kHz, the column in MHz.
+            new Device("Tensor G3", new String[]{"shiba", "husky", "zuma"},
+                    new double[]{0.10, 0.38, 0.85}, new double[]{0.55, 0.60, 0.65},
+                    new double[]{0.90, 1.00, 1.05}, 5.0, 0.60, 0.90, 890, 0.40),
+            // Snapdragon 855, Note10+. kgsl clock_mhz is in MHz, the column in GHz.
+            new Device("Snapdragon 855", new String[]{"msmnile"},
+                    new double[]{0.11, 0.33, 0.42}, new double[]{0.56, 0.60, 0.62},
+                    new double[]{0.88, 1.00, 1.04}, 3.5, 0.60, 0.88, 0.585, 0.35),
+            new Device("generic", new String[0],
+                    new double[]{0.12, 0.35, 0.75}, new double[]{0.55, 0.60, 0.65},
+                    new double[]{0.95, 1.00, 1.05}, 4.0, 0.60, 0.90, 0, 0.35),
+    };
+
+    private final Device device;
+    private final int clusterCount;
+    private final File file;
+    // Cores, frequency range and voltage curve of each cluster
+    private final int[] cores;
+    private final double[] minFrequencyGHz;
+    private final double[] maxFrequencyGHz;
+    private final double[] minVoltage;
+    private final double[] maxVoltage;
+    private double gpuMaxFrequency;
+
+    // Coefficients, one per cluster, then the GPU and the static power
+    private final double[] coefficients;
+    private final double[] features;
+    private boolean calibrated;
+
+    // Inputs of the current sample
+    private final double[] residencyV2f;
+    private final double[] residencyWeight;
+    private final double[] currentV2f;
+    private final double[] utilization;
+    private double gpuFrequency;
+    private double gpuUtilization;
+
+    private final float[] clusterPower;
+    private float gpuPower;
+    private float totalPower;
+
+    // Normal equations of the calibration, X^T X and X^T y
+    private boolean calibrating;
+    private final double[][] normalMatrix;
+    private final double[] normalVector;
+    private double sumSquaredPower;
+    private int calibrationSamples;
+
+    private PowerModel(CpuTopology topology, Device device, File file) {
+        this.device = device;
+        this.file = file;
+        clusterCount = topology.getClusterCount();
+        cores = new int[clusterCount];
+        minFrequencyGHz = new double[clusterCount];
+        maxFrequencyGHz = new double[clusterCount];
+        minVoltage = new double[clusterCount];
+        maxVoltage = new double[clusterCount];
+        coefficients = new double[clusterCount + 2];
+        for (int i = 0; i < clusterCount; i++) {
+            CpuTopology.Cluster cluster = topology.getCluster(i);
+            cores[i] = cluster.getCpus().length;
+            minFrequencyGHz[i] = cluster.getMinFrequency() / 1e6;
+            maxFrequencyGHz[i] = cluster.getMaxFrequency() / 1e6;
+            // Clusters are ordered like the table, stretch the table if the counts differ
+            int entry = clusterCount == 1 ? device.capacitance.length - 1
+                    : Math.round(i * (device.capacitance.length - 1f) / (clusterCount - 1));
+            minVoltage[i] = device.minVoltage[entry];
+            maxVoltage[i] = device.maxVoltage[entry];
+            coefficients[i] = device.capacitance[entry];
+        }
+        coefficients[clusterCount] = device.gpuCoefficient;
+        coefficients[clusterCount + 1] = device.staticWatts;
+        gpuMaxFrequency = device.gpuMaxFrequency;
+
+        features = new double[coefficients.length];
+        residencyV2f = new double[clusterCount];
+        residencyWeight = new double[clusterCount];
+        currentV2f = new double[clusterCount];
+        utilization = new double[clusterCount];
+        clusterPower = new float[clusterCount];
+        normalMatrix = new double[coefficients.length][coefficients.length];
+        normalVector = new double[coefficients.length];
+    }
+
+    // The table coefficients of this board, replaced by a saved calibration of this build
+    public static PowerModel load(Context context, CpuTopology topology) {
+        Device device = DEVICES[DEVICES.length - 1];
+        for (Device candidate : DEVICES) {
+            for (String board : candidate.boards) {
+                if (board.equalsIgnoreCase(Build.BOARD)) {
+                    device = candidate;
+                }
+            }
+        }
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        PowerModel model = new PowerModel(topology, device, file);
+        if (file.exists()) {
+            try {
+                model.readCalibration(file);
+            } catch (IOException | JSONException e) {
+                Log.w(TAG, "Discarding unreadable " + file, e);
+            }
+        }
+        Log.d(TAG, "Using " + (model.calibrated ? "calibrated" : device.name) + " coefficients");
+        return model;
+    }
+
+    public int getClusterCount() {
+        return clusterCount;
+    }
+
+    public boolean isCalibrated() {
+        return calibrated;
+    }
+
+    // Starts a sample, followed by the set and add calls and then estimate()
+    public void beginSample() {
+        for (int i = 0; i < clusterCount; i++) {
+            residencyV2f[i] = 0;
+            residencyWeight[i] = 0;
+            currentV2f[i] = 0;
+            utilization[i] = 0;
+        }
+        gpuFrequency = 0;
+        gpuUtilization = 0;
+    }
+
+    // Time spent at one frequency since the last sample, in any unit
+    public void addResidency(int cluster, long frequencyKHz, long time) {
+        if (time <= 0) return;
+        residencyV2f[cluster] += time * voltageSquaredFrequency(cluster, frequencyKHz / 1e6);
+        residencyWeight[cluster] += time;
+    }
+
+    // scaling_cur_freq of the cluster, used when it has no time_in_state residency
+    public void setClusterFrequency(int cluster, long frequencyKHz) {
+        currentV2f[cluster] = voltageSquaredFrequency(cluster, frequencyKHz / 1e6);
+    }
+
+    // Busy percentage averaged over the cluster's cores, negative if unknown
+    public void setClusterUtilization(int cluster, float percent) {
+        utilization[cluster] = Math.max(0, percent) / 100.0;
+    }
+
+    // Frequency as in the gpuFrequency column, negative utilization if unknown
+    public void setGpu(float frequency, float utilizationPercent) {
+        gpuFrequency = Math.max(0, frequency);
+        gpuUtilization = Math.max(0, utilizationPercent) / 100.0;
+        if (device.gpuMaxFrequency == 0 && gpuFrequency > gpuMaxFrequency) {
+            gpuMaxFrequency = gpuFrequency;
+        }
+    }
+
+    // Computes the estimate of the sample, in W
+    public float estimate() {
+        for (int i = 0; i < clusterCount; i++) {
+            double v2f = residencyWeight[i] > 0 ? residencyV2f[i] / residencyWeight[i] : currentV2f[i];
+            features[i] = cores[i] * utilization[i] * v2f;
+        }
+        double ratio = gpuMaxFrequency > 0 ? Math.min(1, gpuFrequency / gpuMaxFrequency) : 0;
+        double gpuVoltage = device.gpuMinVoltage + (device.gpuMaxVoltage - device.gpuMinVoltage) * ratio;
+        features[clusterCount] = gpuVoltage * gpuVoltage * ratio * gpuUtilization;
+        features[clusterCount + 1] = 1;
+
+        double total = 0;
+        for (int i = 0; i < features.length; i++) {
+            total += coefficients[i] * features[i];
+        }
+        for (int i = 0; i < clusterCount; i++) {
+            clusterPower[i] = (float) (coefficients[i] * features[i]);
+        }
+        gpuPower = (float) (coefficients[clusterCount] * features[clusterCount]);
+        totalPower = (float) total;
+        return totalPower;
+    }
+
+    public float getClusterPowerWatts(int cluster) {
+        return clusterPower[cluster];
+    }
+
+    public float getGpuPowerWatts() {
+        return gpuPower;
+    }
+
+    public float getTotalPowerWatts() {
+        return totalPower;
+    }
+
+    // Discards any earlier calibration samples, see addCalibrationSample
+    public void startCalibration() {
+        for (double[] row : normalMatrix) {
+            Arrays.fill(row, 0);
+        }
+        Arrays.fill(normalVector, 0);
+        sumSquaredPower = 0;
+        calibrationSamples = 0;
+        calibrating = true;
+        Log.d(TAG, "Calibration started");
+    }
+
+    public boolean isCalibrating() {
+        return calibrating;
+    }
+
+    public int getCalibrationSamples() {
+        return calibrationSamples;
+    }
+
+    // Pairs the last estimate() with the battery power measured over the same window
+    public void addCalibrationSample(double measuredWatts) {
+        if (!calibrating || measuredWatts <= 0) return;
+        for (int i = 0; i < features.length; i++) {
+            for (int j = 0; j < features.length; j++) {
+                normalMatrix[i][j] += features[i] * features[j];
+            }
+            normalVector[i] += features[i] * measuredWatts;
+        }
+        sumSquaredPower += measuredWatts * measuredWatts;
+        calibrationSamples++;
+    }
+
+    // Fits the coefficients to the samples and saves them. Returns false, keeping the current
+    // coefficients, if there were too few samples.
+    public boolean finishCalibration() {
+        if (!calibrating) return false;
+        calibrating = false;
+        if (calibrationSamples < MIN_CALIBRATION_SAMPLES) {
+            Log.w(TAG, "Calibration needs " + MIN_CALIBRATION_SAMPLES + " samples, got " + calibrationSamples);
+            return false;
+        }
+        int n = coefficients.length;
+        double[][] system = new double[n][n + 1];
+        for (int i = 0; i < n; i++) {
+            // Ridge regression towards the current coefficients
+            double ridge = RIDGE * normalMatrix[i][i] + 1e-6;
+            for (int j = 0; j < n; j++) {
+                system[i][j] = normalMatrix[i][j];
+            }
+            system[i][i] += ridge;
+            system[i][n] = normalVector[i] + ridge * coefficients[i];
+        }
+        double[] fit = solve(system);
+        if (fit == null) {
+            Log.w(TAG, "Calibration samples are degenerate");
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            // A negative capacitance only fits noise
+            coefficients[i] = Math.max(0, fit[i]);
+        }
+        calibrated = true;
+
+        double residual = sumSquaredPower;
+        for (int i = 0; i < n; i++) {
+            residual -= 2 * coefficients[i] * normalVector[i];
+            for (int j = 0; j < n; j++) {
+                residual += coefficients[i] * normalMatrix[i][j] * coefficients[j];
+            }
+        }
+        double rmsError = Math.sqrt(Math.max(0, residual) / calibrationSamples);
+        Log.d(TAG, "Calibrated from " + calibrationSamples + " samples, RMS error " + (float) rmsError + " W");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(toJson(rmsError).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Cannot save " + file, e);
+        }
+        return true;
+    }
+
+    private double voltageSquaredFrequency(int cluster, double frequencyGHz) {
+        double range = maxFrequencyGHz[cluster] - minFrequencyGHz[cluster];
+        double position = range > 0 ? (frequencyGHz - minFrequencyGHz[cluster]) / range : 1;
+        position = Math.max(0, Math.min(1, position));
+        double voltage = minVoltage[cluster] + (maxVoltage[cluster] - minVoltage[cluster]) * position;
+        return voltage * voltage * frequencyGHz;
+    }
+
+    // Gaussian elimination with partial pivoting of an augmented matrix, null if singular
+    static double[] solve(double[][] system) {
+        int n = system.length;
+        for (int column = 0; column < n; column++) {
+            int pivot = column;
+            for (int row = column + 1; row < n; row++) {
+                if (Math.abs(system[row][column]) > Math.abs(system[pivot][column])) pivot = row;
+            }
+            if (Math.abs(system[pivot][column]) < 1e-12) return null;
+            double[] swap = system[column];
+            system[column] = system[pivot];
+            system[pivot] = swap;
+            for (int row = column + 1; row < n; row++) {
+                double factor = system[row][column] / system[column][column];
+                for (int j = column; j <= n; j++) {
+                    system[row][j] -= factor * system[column][j];
+                }
+            }
+        }
+        double[] result = new double[n];
+        for (int row = n - 1; row >= 0; row--) {
+            double sum = system[row][n];
+            for (int j = row + 1; j < n; j++) {
+                sum -= system[row][j] * result[j];
+            }
+            result[row] = sum / system[row][row];
+        }
+        return result;
+    }
+
+    private String toJson(double rmsError) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("version", VERSION);
+        json.put("fingerprint", Build.FINGERPRINT);
+        json.put("clusters", clusterCount);
+        JSONArray values = new JSONArray();
+        for (double coefficient : coefficients) {
+            values.put(coefficient);
+        }
+        json.put("coefficients", values);
+        json.put("samples", calibrationSamples);
+        json.put("rmsError", rmsError);
+        return json.toString(2);
+    }
+
+    private void readCalibration(File file) throws IOException, JSONException {
+        byte[] bytes = new byte[(int) file.length()];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int offset = 0;
+            int count;
+            while (offset < bytes.length && (count = in.read(bytes, offset, bytes.length - offset)) > 0) {
+                offset += count;
+            }
+        }
+        JSONObject json = new JSONObject(new String(bytes, StandardCharsets.UTF_8));
+        if (json.getInt("version") != VERSION || !json.getString("fingerprint").equals(Build.FINGERPRINT)
+                || json.getInt("clusters") != clusterCount) {
+            Log.d(TAG, "Ignoring calibration of another build");
+            return;
+        }
+        JSONArray values = json.getJSONArray("coefficients");
+        for (int i = 0; i < coefficients.length; i++) {
+            coefficients[i] = values.getDouble(i);
+        }
+        calibrated = true;
+    }
+}
@@ -0,0 +1,117 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.util.Log;
+
+/**
+ * Samples the battery's current and voltage at a high rate and integrates the energy drawn.
+ *
+ * current_now and voltage_now of /sys/class/power_supply/battery are read through pre-opened
+ * handles. Devices that do not expose them fall back to
+ * BatteryManager.BATTERY_PROPERTY_CURRENT_NOW and the voltage of the last battery broadcast.
+ * Power is integrated with the trapezoidal rule over System.nanoTime(), so consumers get the
+ * energy of any window as the difference of two {@link #getEnergyJoules()} readings.
+ *
+ * The sign of current_now differs between devices, so its magnitude is used. The numbers are
+ * only meaningful while the device runs on battery.
+ */
+public class PowerSampler {
+    private static final String TAG = "PowerSampler";
+    public static final long DEFAULT_PERIOD_MS = 20;
+    private static final String BATTERY_DIR = "/sys/class/power_supply/battery/";
+    // The battery broadcast is expensive to read, so the fallback voltage is refreshed slowly
+    private static final long VOLTAGE_REFRESH_NANOS = 1000000000L;
+
+    private final Context context;
+    private final SysfsSampler sampler = new SysfsSampler(false);
+    private final int currentNode;
+    private final int voltageNode;
+    private final SamplerScheduler scheduler;
+    private BatteryManager batteryManager;
+    private boolean useBatteryManager;
+    private long fallbackVoltageMicroVolts;
+    private long lastVoltageRefreshNanos;
+
+    private long previousNanos;
+    private double previousWatts;
+    private volatile float powerWatts;
+    private volatile double energyJoules;
+    private volatile boolean available;
+
+    public PowerSampler(Context context, long periodMs) {
+        this.context = context;
+        currentNode = sampler.addValue(BATTERY_DIR + "current_now");
+        voltageNode = sampler.addValue(BATTERY_DIR + "voltage_now");
+        scheduler = new SamplerScheduler(TAG, periodMs);
+        scheduler.addSource("battery", this::sample);
+    }
+
+    public void start() {
+        scheduler.start();
+    }
+
+    public void stop() {
+        scheduler.stop();
+    }
+
+    // Latest instantaneous power draw
+    public float getPowerWatts() {
+        return powerWatts;
+    }
+
+    // Energy drawn since start()
+    public double getEnergyJoules() {
+        return energyJoules;
+    }
+
+    // False until the first reading with both current and voltage
+    public boolean isAvailable() {
+        return available;
+    }
+
+    private void sample() {
+        long now = System.nanoTime();
+        sampler.sample();
+        long microAmps = sampler.value(currentNode);
+        long microVolts = sampler.value(voltageNode);
+        if (useBatteryManager || microAmps == SysfsSampler.MISSING || microVolts == SysfsSampler.MISSING) {
+            microAmps = readBatteryManagerCurrent();
+            microVolts = readBatteryManagerVoltage(now);
+        }
+        if (microAmps == SysfsSampler.MISSING || microVolts <= 0) return;
+
+        double watts = Math.abs(microAmps) * 1e-6 * (microVolts * 1e-6);
+        if (available) {
+            energyJoules += (previousWatts + watts) / 2 * ((now - previousNanos) / 1e9);
+        }
+        previousNanos = now;
+        previousWatts = watts;
+        powerWatts = (float) watts;
+        available = true;
+    }
+
+    private long readBatteryManagerCurrent() {
+        if (!useBatteryManager) {
+            Log.d(TAG, "No readable current_now/voltage_now, using BatteryManager");
+            batteryManager = (BatteryManager) context.getSystemService(Context.BATTERY_SERVICE);
+            useBatteryManager = true;
+        }
+        if (batteryManager == null) return SysfsSampler.MISSING;
+        int microAmps = batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CURRENT_NOW);
+        return microAmps == Integer.MIN_VALUE ? SysfsSampler.MISSING : microAmps;
+    }
+
+    private long readBatteryManagerVoltage(long now) {
+        if (fallbackVoltageMicroVolts == 0 || now - lastVoltageRefreshNanos >= VOLTAGE_REFRESH_NANOS) {
+            Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            if (battery != null) {
+                fallbackVoltageMicroVolts = battery.getIntExtra(BatteryManager.EXTRA_VOLTAGE, 0) * 1000L;
+            }
+            lastVoltageRefreshNanos = now;
+        }
+        return fallbackVoltageMicroVolts;
+    }
+}
@@ -0,0 +1,185 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single long-lived su shell used for every privileged read.
+ *
+ * The shell is started once and kept open. Callers send one batched command per tick (see
+ * {@link #batchCommand(List)}) that dumps several files separated by {@link #SEPARATOR}, and
+ * the whole reply is read into one reused buffer, so no process is created per file or per
+ * tick.
+ *
+ * A watchdog thread destroys the shell when a reply takes longer than READ_TIMEOUT_MS, e.g.
+ * while su waits for a grant dialog, so a caller is never blocked for good. After a failure
+ * the shell is only started again once a backoff has passed, doubling with every consecutive
+ * failure, and after MAX_FAILURES in a row {@link #canRun()} stays false.
+ */
+public class RootShell implements Closeable {
+    private static final String TAG = "RootShell";
+
+    // Written after every file of a batch
+    public static final byte SEPARATOR = 0x1e;
+    // Written once at the end of every reply
+    private static final byte END = 0x1d;
+    public static final long READ_TIMEOUT_MS = 5000;
+    public static final int MAX_FAILURES = 5;
+    private static final long INITIAL_BACKOFF_MS = 1000;
+
+    private Process process;
+    private OutputStream stdin;
+    private InputStream stdout;
+    private byte[] reply = new byte[8192];
+    private int replyLength;
+    private int failures;
+    private long nextStartNanos;
+
+    // Deadline of the reply being read, 0 while idle. Read by the watchdog without the lock.
+    private volatile long readDeadlineNanos;
+    private volatile Process watchedProcess;
+    private volatile boolean timedOut;
+    private volatile boolean closed;
+    private Thread watchdog;
+
+    // Builds a command that prints each file followed by a separator line. Unreadable files
+    // print nothing, so their record is empty.
+    public static byte[] batchCommand(List<String> paths) {
+        StringBuilder command = new StringBuilder();
+        for (String path : paths) {
+            command.append("cat '").append(path).append("' 2>/dev/null; printf '\\n\\036\\n'; ");
+        }
+        command.append("printf '\\035'\n");
+        return command.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // False while backing off after a failure and for good after MAX_FAILURES in a row
+    public synchronized boolean canRun() {
+        if (closed || failures >= MAX_FAILURES) return false;
+        return process != null || System.nanoTime() - nextStartNanos >= 0;
+    }
+
+    // Consecutive failures, reset by a successful reply
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    // Sends a command built by batchCommand and blocks until the whole reply has been read,
+    // at most READ_TIMEOUT_MS. Returns the reply length; the bytes are available through
+    // reply(). Only call while canRun().
+    public synchronized int run(byte[] command) throws IOException {
+        if (!canRun()) {
+            throw new IOException("Root shell unavailable after " + failures + " failures");
+        }
+        try {
+            if (process == null) {
+                start();
+            }
+            timedOut = false;
+            readDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(READ_TIMEOUT_MS);
+            LockSupport.unpark(watchdog);
+            stdin.write(command);
+            stdin.flush();
+            replyLength = 0;
+            while (true) {
+                if (replyLength == reply.length) {
+                    byte[] grown = new byte[reply.length * 2];
+                    System.arraycopy(reply, 0, grown, 0, replyLength);
+                    reply = grown;
+                }
+                int count = stdout.read(reply, replyLength, reply.length - replyLength);
+                if (count < 0) {
+                    throw new IOException(timedOut ? "Root shell timed out" : "Root shell exited");
+                }
+                replyLength += count;
+                if (reply[replyLength - 1] == END) {
+                    readDeadlineNanos = 0;
+                    failures = 0;
+                    return --replyLength;
+                }
+            }
+        } catch (IOException e) {
+            readDeadlineNanos = 0;
+            if (timedOut) {
+                e = new IOException("Root shell timed out", e);
+            }
+            // Drop the shell so that a later call starts a fresh one, after the backoff
+            destroyProcess();
+            failures++;
+            long backoffMs = INITIAL_BACKOFF_MS << Math.min(failures - 1, 16);
+            nextStartNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMs);
+            throw e;
+        }
+    }
+
+    public byte[] reply() {
+        return reply;
+    }
+
+    private void start() throws IOException {
+        process = new ProcessBuilder("su").start();
+        stdin = process.getOutputStream();
+        stdout = process.getInputStream();
+        // Keep stderr from filling up its pipe, nothing reads it
+        stdin.write("exec 2>/dev/null\n".getBytes(StandardCharsets.UTF_8));
+        watchedProcess = process;
+        if (watchdog == null) {
+            watchdog = new Thread(this::watch, "RootShellWatchdog");
+            watchdog.setDaemon(true);
+            watchdog.start();
+        }
+        Log.d(TAG, "Root shell started");
+    }
+
+    // Destroys the shell when the reply being read is past its deadline, which ends the read
+    private void watch() {
+        while (!closed) {
+            long deadline = readDeadlineNanos;
+            if (deadline == 0) {
+                LockSupport.park(this);
+                continue;
+            }
+            long wait = deadline - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            Process current = watchedProcess;
+            if (current != null && readDeadlineNanos == deadline) {
+                timedOut = true;
+                readDeadlineNanos = 0;
+                current.destroy();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        LockSupport.unpark(watchdog);
+        destroyProcess();
+    }
+
+    private void destroyProcess() {
+        if (process == null) return;
+        try {
+            stdin.write("exit\n".getBytes(StandardCharsets.UTF_8));
+            stdin.flush();
+        } catch (IOException e) {
+            // Already gone
+        }
+        process.destroy();
+        process = null;
+        watchedProcess = null;
+        stdin = null;
+        stdout = null;
+    }
+}
@@ -0,0 +1,163 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs telemetry sources periodically on a dedicated thread, timed with System.nanoTime().
+ *
+ * Deadlines are computed from the start time and the tick number, not from the end of the
+ * previous tick, so the schedule does not drift. A tick that takes longer than the period is
+ * counted as an overrun and the deadlines it caused to be missed are skipped and counted,
+ * instead of being run back to back. Each source runs in its own try/catch, so one failing
+ * source neither stops the others nor the schedule.
+ */
+public class SamplerScheduler {
+    private static final String TAG = "SamplerScheduler";
+    public static final long MIN_PERIOD_MS = 10;
+    public static final long MAX_PERIOD_MS = 10000;
+
+    /** One step of a tick, e.g. reading sysfs or writing a row. */
+    public interface Source {
+        void sample() throws Exception;
+    }
+
+    private final String name;
+    private final ArrayList<Source> sources = new ArrayList<>();
+    private final ArrayList<String> sourceNames = new ArrayList<>();
+    private long[] sourceFailures = new long[0];
+    private volatile long periodNanos;
+    private volatile boolean periodChanged;
+    private volatile boolean running;
+    private Thread thread;
+
+    private volatile long ticks;
+    private volatile long missedDeadlines;
+    private volatile long overruns;
+    private volatile long lastTickNanos;
+    private volatile long maxTickNanos;
+
+    public SamplerScheduler(String name, long periodMs) {
+        this.name = name;
+        // Not a change, the first tick already runs on this period
+        periodNanos = clampedPeriodNanos(periodMs);
+    }
+
+    // Sources run in the order they were added. Must be called before start().
+    public void addSource(String sourceName, Source source) {
+        sourceNames.add(sourceName);
+        sources.add(source);
+        sourceFailures = new long[sources.size()];
+    }
+
+    // Clamped to [MIN_PERIOD_MS, MAX_PERIOD_MS]. Takes effect from the next tick.
+    public void setPeriodMs(long periodMs) {
+        periodNanos = clampedPeriodNanos(periodMs);
+        periodChanged = true;
+    }
+
+    private static long clampedPeriodNanos(long periodMs) {
+        long clamped = Math.max(MIN_PERIOD_MS, Math.min(MAX_PERIOD_MS, periodMs));
+        return TimeUnit.MILLISECONDS.toNanos(clamped);
+    }
+
+    public long getPeriodMs() {
+        return TimeUnit.NANOSECONDS.toMillis(periodNanos);
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        thread = new Thread(this::run, name);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            thread = null;
+        }
+    }
+
+    public long getTickCount() {
+        return ticks;
+    }
+
+    // Deadlines that were skipped because an earlier tick was still running
+    public long getMissedDeadlines() {
+        return missedDeadlines;
+    }
+
+    // Ticks that took longer than one period
+    public long getOverruns() {
+        return overruns;
+    }
+
+    public long getLastTickNanos() {
+        return lastTickNanos;
+    }
+
+    public long getMaxTickNanos() {
+        return maxTickNanos;
+    }
+
+    private void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+        long period = periodNanos;
+        long start = System.nanoTime();
+        long tick = 0;
+        while (running) {
+            long deadline = start + tick * period;
+            long now = System.nanoTime();
+            if (now < deadline) {
+                LockSupport.parkNanos(deadline - now);
+                continue;
+            }
+
+            runSources();
+            long end = System.nanoTime();
+            long duration = end - deadline;
+            lastTickNanos = duration;
+            if (duration > maxTickNanos) maxTickNanos = duration;
+            if (duration > period) overruns++;
+            ticks++;
+
+            if (periodChanged) {
+                // Re-anchor the schedule on the new period, the next tick is one new period
+                // after this one rather than right away
+                periodChanged = false;
+                period = periodNanos;
+                start = end;
+                tick = 1;
+                continue;
+            }
+
+            // Skip every deadline that already passed while this tick was running
+            long next = tick + 1;
+            long current = (end - start) / period;
+            if (current >= next) {
+                missedDeadlines += current - next + 1;
+                next = current + 1;
+            }
+            tick = next;
+        }
+    }
+
+    private void runSources() {
+        for (int i = 0; i < sources.size(); i++) {
+            try {
+                sources.get(i).sample();
+            } catch (Exception e) {
+                // Only log the first few failures of a source, they tend to repeat every tick
+                if (sourceFailures[i]++ < 3) {
+                    Log.e(TAG, name + ": source " + sourceNames.get(i) + " failed", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streaming statistics of one metric: percentiles over a sliding window, EWMA, min and max.
+ *
+ * Any number of threads {@link #record} values without locks. One writer thread calls
+ * {@link #snapshot()} to close the current interval; recording switches to a second histogram
+ * and the closed one is added to the window, which holds the last windowIntervals intervals.
+ * The switch waits only for records that were already in progress, as HdrHistogram's
+ * WriterReaderPhaser does. Nothing is allocated after construction.
+ *
+ * Values are longs in the caller's unit, e.g. nanoseconds, and are reported divided by
+ * {@code unit}, e.g. 1e6 for milliseconds. Percentiles are as precise as the histogram's
+ * sub-buckets, see {@link LogHistogram}.
+ */
+public class StreamingStats {
+    public static final double EWMA_ALPHA = 0.1;
+
+    private final String name;
+    private final double unit;
+    private final LogHistogram even;
+    private final LogHistogram odd;
+    // Phase of the recorders, negative while they use the odd histogram
+    private final AtomicLong startEpoch = new AtomicLong();
+    private final AtomicLong evenEndEpoch = new AtomicLong();
+    private final AtomicLong oddEndEpoch = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong ewmaBits = new AtomicLong(Double.doubleToLongBits(Double.NaN));
+
+    // Written and read by the snapshot thread only
+    private final long[][] intervals;
+    private final long[] intervalCounts;
+    private final long[] window;
+    private int nextInterval;
+    private long windowCount;
+    private long count;
+    private long totalCount;
+    private long sum;
+    private long min;
+    private long max;
+    private long allTimeMin = Long.MAX_VALUE;
+    private long allTimeMax = Long.MIN_VALUE;
+
+    public StreamingStats(String name, double unit, int windowIntervals) {
+        this(name, unit, windowIntervals, LogHistogram.DEFAULT_SUB_BUCKET_BITS);
+    }
+
+    public StreamingStats(String name, double unit, int windowIntervals, int subBucketBits) {
+        this.name = name;
+        this.unit = unit;
+        even = new LogHistogram(subBucketBits);
+        odd = new LogHistogram(subBucketBits);
+        int bucketCount = LogHistogram.bucketCount(subBucketBits);
+        window = new long[bucketCount];
+        intervals = new long[windowIntervals][bucketCount];
+        intervalCounts = new long[windowIntervals];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Lock-free, from any thread
+    public void record(long value) {
+        long epoch = startEpoch.getAndIncrement();
+        if (epoch < 0) {
+            odd.record(value);
+            oddEndEpoch.getAndIncrement();
+        } else {
+            even.record(value);
+            evenEndEpoch.getAndIncrement();
+        }
+        long bits;
+        double next;
+        do {
+            bits = ewmaBits.get();
+            double ewma = Double.longBitsToDouble(bits);
+            next = Double.isNaN(ewma) ? value : ewma + EWMA_ALPHA * (value - ewma);
+        } while (!ewmaBits.compareAndSet(bits, Double.doubleToLongBits(next)));
+    }
+
+    // Closes the current interval and slides the window. From one thread at a time.
+    public void snapshot() {
+        boolean nextOdd = startEpoch.get() >= 0;
+        LogHistogram closed = nextOdd ? even : odd;
+        AtomicLong closedEndEpoch = nextOdd ? evenEndEpoch : oddEndEpoch;
+        if (nextOdd) {
+            oddEndEpoch.set(Long.MIN_VALUE);
+        } else {
+            evenEndEpoch.set(0);
+        }
+        long closedStartEpoch = startEpoch.getAndSet(nextOdd ? Long.MIN_VALUE : 0);
+        // Wait for the records that started before the switch
+        while (closedEndEpoch.get() != closedStartEpoch) {
+            Thread.yield();
+        }
+
+        // The closed interval replaces the oldest one of the window
+        long[] interval = intervals[nextInterval];
+        windowCount -= intervalCounts[nextInterval];
+        for (int i = 0; i < window.length; i++) {
+            long bucket = closed.counts.get(i);
+            window[i] += bucket - interval[i];
+            interval[i] = bucket;
+        }
+        count = closed.count.get();
+        sum = closed.sum.get();
+        min = closed.min.get();
+        max = closed.max.get();
+        intervalCounts[nextInterval] = count;
+        windowCount += count;
+        totalCount += count;
+        nextInterval = (nextInterval + 1) % intervals.length;
+        if (count > 0) {
+            allTimeMin = Math.min(allTimeMin, min);
+            allTimeMax = Math.max(allTimeMax, max);
+        }
+        closed.reset();
+    }
+
+    // Values in the last interval
+    public long getCount() {
+        return count;
+    }
+
+    // Values in the window
+    public long getWindowCount() {
+        return windowCount;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    // Of the last interval, NaN if it had no values
+    public double getMean() {
+        return count == 0 ? Double.NaN : sum / (double) count / unit;
+    }
+
+    public double getMin() {
+        return count == 0 ? Double.NaN : min / unit;
+    }
+
+    public double getMax() {
+        return count == 0 ? Double.NaN : max / unit;
+    }
+
+    public double getAllTimeMin() {
+        return totalCount == 0 ? Double.NaN : allTimeMin / unit;
+    }
+
+    public double getAllTimeMax() {
+        return totalCount == 0 ? Double.NaN : allTimeMax / unit;
+    }
+
+    // Updated on every record, NaN before the first
+    public double getEwma() {
+        return Double.longBitsToDouble(ewmaBits.get()) / unit;
+    }
+
+    // Percentile of the window, e.g. 99 for p99, NaN if the window is empty
+    public double getPercentile(double percentile) {
+        if (windowCount == 0) return Double.NaN;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * windowCount));
+        long seen = 0;
+        for (int i = 0; i < window.length; i++) {
+            seen += window[i];
+            if (seen >= rank) return even.valueOf(i) / unit;
+        }
+        return even.valueOf(window.length - 1) / unit;
+    }
+
+    // Header columns of a metric: count, min, p50, p95, p99, max, mean and ewma
+    public static void appendHeader(StringBuilder header, String name) {
+        header.append(name).append("Count,")
+                .append(name).append("Min,")
+                .append(name).append("P50,")
+                .append(name).append("P95,")
+                .append(name).append("P99,")
+                .append(name).append("Max,")
+                .append(name).append("Mean,")
+                .append(name).append("Ewma,");
+    }
+
+    // The values of appendHeader as of the last snapshot
+    public void appendValues(StringBuilder row) {
+        row.append(count).append(',')
+                .append((float) getMin()).append(',')
+                .append((float) getPercentile(50)).append(',')
+                .append((float) getPercentile(95)).append(',')
+                .append((float) getPercentile(99)).append(',')
+                .append((float) getMax()).append(',')
+                .append((float) getMean()).append(',')
+                .append((float) getEwma()).append(',');
+    }
+}
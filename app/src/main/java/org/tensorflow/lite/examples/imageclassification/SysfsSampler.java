@@ -0,0 +1,365 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Samples sysfs and procfs nodes through file handles that are opened once.
+ *
+ * Every node is resolved and opened when it is added. Each call to {@link #sample()} re-reads
+ * it with a positional read into one reused buffer and parses the digits in place, so a tick
+ * costs one pread per node and creates no processes and no Strings. Nodes the app is not
+ * allowed to open are read through one long-lived {@link RootShell}, if root access was
+ * enabled, with a single batched command per sample.
+ */
+public class SysfsSampler {
+    private static final String TAG = "SysfsSampler";
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_TABLE_ROWS = 128;
+
+    // Value reported for nodes that could not be read on the last sample
+    public static final long MISSING = Long.MIN_VALUE;
+
+    private static final class Node {
+        final String path;
+        final int column;
+        final int offset;
+        final int rows;
+        final long[] keys;
+        final RandomAccessFile file;
+        final FileChannel channel;
+
+        Node(String path, int column, int offset, int rows, long[] keys, RandomAccessFile file) {
+            this.path = path;
+            this.column = column;
+            this.offset = offset;
+            this.rows = rows;
+            this.keys = keys;
+            this.file = file;
+            this.channel = file != null ? file.getChannel() : null;
+        }
+
+        boolean isPrivileged() {
+            return channel == null;
+        }
+    }
+
+    private final boolean useRoot;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ArrayList<Node> nodes = new ArrayList<>();
+    private final ArrayList<Node> privilegedNodes = new ArrayList<>();
+    private RootShell rootShell;
+    private byte[] privilegedCommand;
+    private ByteBuffer privilegedReply;
+    private long[] values = new long[32];
+    private int valueCount;
+
+    public SysfsSampler(boolean useRoot) {
+        this.useRoot = useRoot;
+    }
+
+    // Adds a node holding a single number, e.g. "scaling_cur_freq" or "temp"
+    public int addValue(String path) {
+        return addNode(path, 0, 1, null, open(path));
+    }
+
+    // Adds a "key value" table such as "time_in_state"; the value column is sampled and the
+    // key column is read once, here.
+    public int addTable(String path) {
+        RandomAccessFile file = open(path);
+        ByteBuffer src = buffer;
+        int length;
+        if (file != null) {
+            length = read(file.getChannel());
+        } else {
+            length = runPrivileged(RootShell.batchCommand(Collections.singletonList(path)));
+            src = privilegedReply;
+            if (length >= 0) {
+                length = recordEnd(src, 0, length);
+            }
+        }
+        if (length < 0) {
+            return addNode(path, 1, 0, new long[0], file);
+        }
+        long[] rows = new long[MAX_TABLE_ROWS];
+        int rowCount = parseColumn(src, 0, length, 0, rows, 0, MAX_TABLE_ROWS);
+        long[] keys = new long[rowCount];
+        System.arraycopy(rows, 0, keys, 0, rowCount);
+        return addNode(path, 1, rowCount, keys, file);
+    }
+
+    private int addNode(String path, int column, int rows, long[] keys, RandomAccessFile file) {
+        ensureCapacity(valueCount + rows);
+        Node node = new Node(path, column, valueCount, rows, keys, file);
+        if (node.isPrivileged()) {
+            if (useRoot) {
+                privilegedNodes.add(node);
+                privilegedCommand = null;
+            } else {
+                Log.w(TAG, "Cannot open " + path);
+            }
+        }
+        nodes.add(node);
+        for (int i = 0; i < rows; i++) {
+            values[valueCount + i] = MISSING;
+        }
+        valueCount += rows;
+        return nodes.size() - 1;
+    }
+
+    // Re-reads every node. Nodes that fail report MISSING until they can be read again.
+    public void sample() {
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            if (node.isPrivileged()) {
+                continue;
+            }
+            int length = read(node.channel);
+            if (length < 0) {
+                setMissing(node);
+                continue;
+            }
+            // An empty or short read must not leave the previous tick's values behind
+            int rows = parseColumn(buffer, 0, length, node.column, values, node.offset, node.rows);
+            setMissing(node, rows);
+        }
+        if (!privilegedNodes.isEmpty()) {
+            samplePrivileged();
+        }
+    }
+
+    // Reads every privileged node with one command and splits the reply in a single pass
+    private void samplePrivileged() {
+        if (privilegedCommand == null) {
+            ArrayList<String> paths = new ArrayList<>();
+            for (Node node : privilegedNodes) {
+                paths.add(node.path);
+            }
+            privilegedCommand = RootShell.batchCommand(paths);
+        }
+        int length = runPrivileged(privilegedCommand);
+        if (length < 0) {
+            for (Node node : privilegedNodes) {
+                setMissing(node);
+            }
+            return;
+        }
+        int start = 0;
+        for (int i = 0; i < privilegedNodes.size(); i++) {
+            Node node = privilegedNodes.get(i);
+            int end = recordEnd(privilegedReply, start, length);
+            if (end == length) {
+                setMissing(node);
+            } else {
+                int rows = parseColumn(privilegedReply, start, end, node.column,
+                        values, node.offset, node.rows);
+                setMissing(node, rows);
+            }
+            start = end + 1;
+        }
+    }
+
+    private void setMissing(Node node) {
+        setMissing(node, 0);
+    }
+
+    // Marks the rows of a node from firstRow on, e.g. the ones a read did not return
+    private void setMissing(Node node, int firstRow) {
+        for (int row = firstRow; row < node.rows; row++) {
+            values[node.offset + row] = MISSING;
+        }
+    }
+
+    public int rows(int node) {
+        return nodes.get(node).rows;
+    }
+
+    public long key(int node, int row) {
+        return nodes.get(node).keys[row];
+    }
+
+    public long value(int node) {
+        return value(node, 0);
+    }
+
+    public long value(int node, int row) {
+        Node current = nodes.get(node);
+        return row < current.rows ? values[current.offset + row] : MISSING;
+    }
+
+    public boolean isPrivileged(int node) {
+        return nodes.get(node).isPrivileged();
+    }
+
+    public void close() {
+        for (Node node : nodes) {
+            closeQuietly(node.file);
+        }
+        nodes.clear();
+        privilegedNodes.clear();
+        privilegedCommand = null;
+        valueCount = 0;
+        if (rootShell != null) {
+            rootShell.close();
+            rootShell = null;
+        }
+    }
+
+    private RandomAccessFile open(String path) {
+        try {
+            return new RandomAccessFile(path, "r");
+        } catch (IOException | SecurityException e) {
+            return null;
+        }
+    }
+
+    // Fills the shared buffer with the contents of the node and returns the number of bytes,
+    // or -1 if it could not be read.
+    private int read(FileChannel channel) {
+        buffer.clear();
+        try {
+            int length = 0;
+            int count;
+            while (buffer.hasRemaining() && (count = channel.read(buffer, length)) > 0) {
+                length += count;
+            }
+            return length;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    // Runs a batched command in the root shell and returns the reply length, or -1. The reply
+    // is available through privilegedReply.
+    private int runPrivileged(byte[] command) {
+        if (!useRoot) return -1;
+        if (rootShell == null) {
+            rootShell = new RootShell();
+        }
+        // Backing off after a failure, or given up
+        if (!rootShell.canRun()) return -1;
+        try {
+            int length = rootShell.run(command);
+            if (privilegedReply == null || privilegedReply.array() != rootShell.reply()) {
+                privilegedReply = ByteBuffer.wrap(rootShell.reply());
+            }
+            return length;
+        } catch (IOException e) {
+            int failures = rootShell.getFailures();
+            if (failures >= RootShell.MAX_FAILURES) {
+                Log.w(TAG, "Root shell failed " + failures + " times in a row, privileged nodes stay missing", e);
+            } else {
+                Log.w(TAG, "Root shell read failed (" + failures + "): " + e.getMessage());
+            }
+            return -1;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > values.length) {
+            long[] grown = new long[Math.max(capacity, values.length * 2)];
+            System.arraycopy(values, 0, grown, 0, valueCount);
+            values = grown;
+        }
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file == null) return;
+        try {
+            file.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing node", e);
+        }
+    }
+
+    // Parses the given whitespace separated column of every non-empty line in [from, to) into
+    // out, starting at offset. Returns the number of rows parsed.
+    static int parseColumn(ByteBuffer src, int from, int to, int column,
+                           long[] out, int offset, int maxRows) {
+        int row = 0;
+        int pos = from;
+        while (pos < to && row < maxRows) {
+            int end = lineEnd(src, pos, to);
+            if (end > pos) {
+                out[offset + row] = parseLong(src, skipTokens(src, pos, end, column), end);
+                row++;
+            }
+            pos = end + 1;
+        }
+        return row;
+    }
+
+    // Parses the first integer in [from, to), ignoring anything after it such as a '%' or a
+    // unit. Returns MISSING if there is no number.
+    static long parseLong(ByteBuffer src, int from, int to) {
+        int pos = from;
+        boolean negative = false;
+        while (pos < to && !isDigit(src.get(pos))) {
+            negative = src.get(pos) == '-';
+            pos++;
+        }
+        if (pos == to) return MISSING;
+        long value = 0;
+        while (pos < to && isDigit(src.get(pos))) {
+            value = value * 10 + (src.get(pos) - '0');
+            pos++;
+        }
+        return negative ? -value : value;
+    }
+
+    // Parses up to count whitespace separated integers in [from, to) into out, starting at
+    // offset. Returns the number of fields parsed.
+    static int parseFields(ByteBuffer src, int from, int to, long[] out, int offset, int count) {
+        int pos = from;
+        int parsed = 0;
+        while (parsed < count) {
+            while (pos < to && isSpace(src.get(pos))) pos++;
+            if (pos == to) break;
+            int end = pos;
+            while (end < to && !isSpace(src.get(end))) end++;
+            out[offset + parsed] = parseLong(src, pos, end);
+            parsed++;
+            pos = end;
+        }
+        return parsed;
+    }
+
+    private static int recordEnd(ByteBuffer src, int from, int to) {
+        int pos = from;
+        while (pos < to && src.get(pos) != RootShell.SEPARATOR) {
+            pos++;
+        }
+        return pos;
+    }
+
+    static int lineEnd(ByteBuffer src, int from, int to) {
+        int pos = from;
+        while (pos < to && src.get(pos) != '\n') {
+            pos++;
+        }
+        return pos;
+    }
+
+    static int skipTokens(ByteBuffer src, int from, int to, int count) {
+        int pos = from;
+        for (int i = 0; i < count; i++) {
+            while (pos < to && isSpace(src.get(pos))) pos++;
+            while (pos < to && !isSpace(src.get(pos))) pos++;
+        }
+        return pos;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == ':';
+    }
+}
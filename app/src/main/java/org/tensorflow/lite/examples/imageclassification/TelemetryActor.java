@@ -0,0 +1,152 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single thread that owns telemetry state and processes messages from a mailbox in order.
+ *
+ * Any thread may {@link #post} a message; posting never blocks and never runs the handler, so
+ * e.g. a system callback returns right away. Messages come from a fixed pool and are handled
+ * one at a time, in the order they were posted, so the handler needs no locking. While a tick
+ * is still waiting in the mailbox further ticks are coalesced into it instead of piling up.
+ * If the pool runs out the message is dropped and counted.
+ */
+public class TelemetryActor {
+    private static final String TAG = "TelemetryActor";
+    public static final int DEFAULT_CAPACITY = 64;
+    private static final long POLL_TIMEOUT_MS = 2000;
+
+    /** Handles every message on the actor thread. */
+    public interface Handler {
+        void handle(int type, long argument, String text) throws Exception;
+    }
+
+    // Message types below this are free for the handler's own use
+    public static final int TICK = 1000;
+    private static final int STOP = 1001;
+
+    private static final class Message {
+        int type;
+        long argument;
+        String text;
+    }
+
+    private final String name;
+    private final Handler handler;
+    private final ArrayBlockingQueue<Message> pool;
+    private final ArrayBlockingQueue<Message> mailbox;
+    private final AtomicBoolean tickPending = new AtomicBoolean();
+    private final Thread thread;
+    private volatile boolean stopped;
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final AtomicLong coalescedTicks = new AtomicLong();
+    private long failures;
+
+    public TelemetryActor(String name, int capacity, Handler handler) {
+        this.name = name;
+        this.handler = handler;
+        pool = new ArrayBlockingQueue<>(capacity);
+        // One more for the stop message
+        mailbox = new ArrayBlockingQueue<>(capacity + 1);
+        for (int i = 0; i < capacity; i++) {
+            pool.add(new Message());
+        }
+        thread = new Thread(this::run, name);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    // Queues a message for the handler, false if it was dropped
+    public boolean post(int type, long argument, String text) {
+        if (stopped) return false;
+        Message message = pool.poll();
+        if (message == null) {
+            droppedMessages.incrementAndGet();
+            return false;
+        }
+        message.type = type;
+        message.argument = argument;
+        message.text = text;
+        mailbox.add(message);
+        return true;
+    }
+
+    // Queues a tick unless one is already waiting
+    public void tick() {
+        if (!tickPending.compareAndSet(false, true)) {
+            coalescedTicks.incrementAndGet();
+            return;
+        }
+        if (!post(TICK, 0, null)) {
+            tickPending.set(false);
+        }
+    }
+
+    // Handles everything posted so far and then a message of lastType, e.g. to close what the
+    // handler owns, and ends the thread. Returns right away, e.g. on the main thread, the last
+    // message runs once the actor gets to it.
+    public void stop(int lastType) {
+        if (stopped) return;
+        // The stop message must not be dropped, so it bypasses the pool
+        Message message = new Message();
+        message.type = STOP;
+        message.argument = lastType;
+        mailbox.add(message);
+        stopped = true;
+    }
+
+    // Messages dropped because the mailbox was full
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    // Ticks merged into one that was still waiting, i.e. the actor fell behind the schedule
+    public long getCoalescedTicks() {
+        return coalescedTicks.get();
+    }
+
+    private void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+        while (true) {
+            Message message;
+            try {
+                message = mailbox.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (message == null) continue;
+            int type = message.type;
+            long argument = message.argument;
+            String text = message.text;
+            if (type == STOP) {
+                handleMessage((int) argument, 0, null);
+                return;
+            }
+            message.text = null;
+            pool.add(message);
+            if (type == TICK) {
+                tickPending.set(false);
+            }
+            handleMessage(type, argument, text);
+        }
+    }
+
+    private void handleMessage(int type, long argument, String text) {
+        try {
+            handler.handle(type, argument, text);
+        } catch (Exception e) {
+            // Only log the first few failures, they tend to repeat every tick
+            if (failures++ < 3) {
+                Log.e(TAG, name + ": message " + type + " failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A crash-safe TelemetryLog sink backed by a memory-mapped, preallocated file.
+ *
+ * Every write becomes one frame, [length][CRC32 of the payload][payload], stored straight
+ * into the mapping, so appending a record is a memory copy without a system call. The file
+ * grows by mapping one more chunk when the current one is full; a frame never crosses a chunk,
+ * the rest of the chunk is marked with {@link #PADDING} instead. Data reaches the page cache
+ * right away and survives the app being killed; {@link #flush()} forces it to the storage,
+ * which is what protects it from e.g. a thermal shutdown.
+ *
+ * The file header records whether the journal was closed. {@link #recover(File)} truncates a
+ * journal that was not closed after its last frame with a valid length and CRC.
+ */
+public class TelemetryJournal implements TelemetryLog.Sink {
+    private static final String TAG = "TelemetryJournal";
+    public static final byte[] MAGIC = "THMJRNL1".getBytes(StandardCharsets.US_ASCII);
+    public static final int HEADER_SIZE = 16;
+    public static final int STATE_OPEN = 1;
+    public static final int STATE_CLOSED = 2;
+    public static final int STATE_RECOVERED = 3;
+    // Frame length that marks the unused end of a chunk
+    public static final int PADDING = -1;
+    public static final int FRAME_HEADER_SIZE = 8;
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int chunkSize;
+    private final CRC32 crc = new CRC32();
+    private MappedByteBuffer chunk;
+    private long chunkStart;
+
+    public TelemetryJournal(String path, int chunkSize) throws IOException {
+        this.chunkSize = chunkSize;
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        mapChunk(0);
+        chunk.put(MAGIC).putInt(STATE_OPEN).putInt(chunkSize);
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        if (FRAME_HEADER_SIZE + length > chunkSize - HEADER_SIZE) {
+            throw new IOException("Frame of " + length + " bytes does not fit a chunk");
+        }
+        if (chunk.remaining() < FRAME_HEADER_SIZE + length) {
+            if (chunk.remaining() >= 4) {
+                chunk.putInt(PADDING);
+            }
+            mapChunk(chunkStart + chunkSize);
+        }
+        int position = src.position();
+        crc.reset();
+        crc.update(src);
+        src.position(position);
+        // The payload goes first, a frame only becomes valid once its length is stored
+        int frame = chunk.position();
+        chunk.position(frame + FRAME_HEADER_SIZE);
+        chunk.put(src);
+        chunk.putInt(frame + 4, (int) crc.getValue());
+        chunk.putInt(frame, length);
+    }
+
+    // Forces everything written so far to the storage
+    @Override
+    public void flush() {
+        chunk.force();
+    }
+
+    // Bytes used so far, including the file header
+    public long length() {
+        return chunkStart + chunk.position();
+    }
+
+    @Override
+    public void close() throws IOException {
+        long length = length();
+        chunk.force();
+        // The header may be in an older chunk, so write the state through the channel
+        ByteBuffer state = ByteBuffer.allocate(4).putInt(0, STATE_CLOSED);
+        channel.write(state, MAGIC.length);
+        channel.force(false);
+        chunk = null;
+        file.setLength(length);
+        file.close();
+    }
+
+    private void mapChunk(long start) throws IOException {
+        if (chunk != null) {
+            chunk.force();
+        }
+        file.setLength(start + chunkSize);
+        chunk = channel.map(FileChannel.MapMode.READ_WRITE, start, chunkSize);
+        chunkStart = start;
+    }
+
+    // Truncates a journal that was not closed after its last valid frame. Returns false if
+    // the file is not a journal or was closed properly.
+    public static boolean recover(File journal) {
+        try (RandomAccessFile file = new RandomAccessFile(journal, "rw")) {
+            if (file.length() < HEADER_SIZE) return false;
+            byte[] magic = new byte[MAGIC.length];
+            file.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || file.readInt() != STATE_OPEN) return false;
+            int chunkSize = file.readInt();
+
+            ByteBuffer frames = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            long end = scan(frames, chunkSize, null);
+            file.setLength(end);
+            file.seek(MAGIC.length);
+            file.writeInt(STATE_RECOVERED);
+            Log.d(TAG, "Recovered " + journal + " at " + end + " bytes");
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot recover " + journal, e);
+            return false;
+        }
+    }
+
+    // Walks the frames of a journal and returns the end of the last valid one. If payloads
+    // is not null the valid payloads are copied into it.
+    static long scan(ByteBuffer journal, int chunkSize, ByteBuffer payloads) {
+        CRC32 crc = new CRC32();
+        int position = HEADER_SIZE;
+        int end = position;
+        while (true) {
+            int chunkEnd = (position / chunkSize + 1) * chunkSize;
+            if (chunkEnd - position < FRAME_HEADER_SIZE || position + 4 > journal.limit()) {
+                if (chunkEnd >= journal.limit()) break;
+                position = chunkEnd;
+                continue;
+            }
+            int length = journal.getInt(position);
+            if (length == PADDING) {
+                position = chunkEnd;
+                continue;
+            }
+            if (length <= 0 || position + FRAME_HEADER_SIZE + length > Math.min(chunkEnd, journal.limit())) {
+                break;
+            }
+            ByteBuffer payload = journal.duplicate();
+            payload.limit(position + FRAME_HEADER_SIZE + length).position(position + FRAME_HEADER_SIZE);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != journal.getInt(position + 4)) break;
+            if (payloads != null) payloads.put(payload);
+            position += FRAME_HEADER_SIZE + length;
+            end = position;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,179 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Append-only binary log of TelemetryRing records.
+ *
+ * The file starts with a self-describing header: {@link #MAGIC}, the format version, the size
+ * of a record entry, the type and name of every column and a list of string properties (used
+ * e.g. to describe the CSV layouts). After it come fixed-width entries, all big-endian:
+ *
+ *   'R' followed by one value per column: 8 bytes for long and double columns, 4 for float
+ *   'C' followed by {@link #CHECKPOINT_SYNC}, the number of records so far, the wall clock
+ *       in ms and System.nanoTime(), every checkpoint interval records
+ *
+ * Checkpoints let a reader resynchronize after a damaged region and map records to time
+ * without decoding the whole file. tools/TelemetryLogConverter.java turns a log back into
+ * the CSV files.
+ */
+public class TelemetryLog implements Closeable {
+    public static final byte[] MAGIC = "THMLOG01".getBytes(StandardCharsets.US_ASCII);
+    // 2: the time column is in ExperimentClock nanoseconds
+    public static final int VERSION = 2;
+    public static final byte RECORD = 'R';
+    public static final byte CHECKPOINT = 'C';
+    public static final int CHECKPOINT_SYNC = 0x434b5054;
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 256;
+
+    /** Where the encoded log goes. */
+    public interface Sink extends Closeable {
+        // Consumes all remaining bytes of src
+        void write(ByteBuffer src) throws IOException;
+
+        void flush() throws IOException;
+    }
+
+    /** A sink that buffers entries and writes them to a file when the buffer is full. */
+    public static class FileSink implements Sink {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        public FileSink(String path) throws IOException {
+            channel = new FileOutputStream(path, false).getChannel();
+        }
+
+        @Override
+        public void write(ByteBuffer src) throws IOException {
+            if (src.remaining() > buffer.remaining()) {
+                flush();
+            }
+            if (src.remaining() > buffer.remaining()) {
+                channel.write(src);
+            } else {
+                buffer.put(src);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            channel.close();
+        }
+    }
+
+    private final Sink sink;
+    private final int[] types;
+    private final int checkpointInterval;
+    private final ByteBuffer record;
+    private final ByteBuffer checkpoint = ByteBuffer.allocate(1 + 4 + 8 + 8 + 8);
+    private long recordCount;
+
+    // Writes the header right away
+    public TelemetryLog(Sink sink, TelemetryRing.Layout layout, Map<String, String> properties,
+                        int checkpointInterval) throws IOException {
+        this.sink = sink;
+        this.checkpointInterval = checkpointInterval;
+        types = new int[layout.getColumnCount()];
+        int recordSize = 1;
+        for (int i = 0; i < types.length; i++) {
+            types[i] = layout.getType(i);
+            recordSize += types[i] == TelemetryRing.TYPE_FLOAT ? 4 : 8;
+        }
+        record = ByteBuffer.allocate(recordSize);
+
+        ByteBuffer header = ByteBuffer.allocate(headerSize(layout, properties));
+        header.put(MAGIC).putInt(VERSION).putInt(recordSize).putInt(types.length);
+        for (int i = 0; i < types.length; i++) {
+            header.put((byte) types[i]);
+            putString(header, layout.getName(i));
+        }
+        header.putInt(properties.size());
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            putString(header, property.getKey());
+            putString(header, property.getValue());
+        }
+        header.flip();
+        sink.write(header);
+        writeCheckpoint();
+    }
+
+    // Appends the record the reader currently holds
+    public void append(TelemetryRing.Reader sample) throws IOException {
+        record.clear();
+        record.put(RECORD);
+        for (int i = 0; i < types.length; i++) {
+            switch (types[i]) {
+                case TelemetryRing.TYPE_LONG:
+                    record.putLong(sample.getLong(i));
+                    break;
+                case TelemetryRing.TYPE_FLOAT:
+                    record.putFloat((float) sample.getDouble(i));
+                    break;
+                default:
+                    record.putDouble(sample.getDouble(i));
+            }
+        }
+        record.flip();
+        sink.write(record);
+        if (++recordCount % checkpointInterval == 0) {
+            writeCheckpoint();
+            sink.flush();
+        }
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public void flush() throws IOException {
+        sink.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writeCheckpoint();
+        sink.close();
+    }
+
+    private void writeCheckpoint() throws IOException {
+        checkpoint.clear();
+        checkpoint.put(CHECKPOINT).putInt(CHECKPOINT_SYNC).putLong(recordCount)
+                .putLong(System.currentTimeMillis()).putLong(System.nanoTime());
+        checkpoint.flip();
+        sink.write(checkpoint);
+    }
+
+    private static int headerSize(TelemetryRing.Layout layout, Map<String, String> properties) {
+        int size = MAGIC.length + 4 + 4 + 4 + 4;
+        for (int i = 0; i < layout.getColumnCount(); i++) {
+            size += 1 + 4 + layout.getName(i).getBytes(StandardCharsets.UTF_8).length;
+        }
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            size += 4 + property.getKey().getBytes(StandardCharsets.UTF_8).length;
+            size += 4 + property.getValue().getBytes(StandardCharsets.UTF_8).length;
+        }
+        return size;
+    }
+
+    // Length-prefixed UTF-8
+    private static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length).put(bytes);
+    }
+}
@@ -0,0 +1,194 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The most recent telemetry samples of the process, in a fixed-size ring.
+ *
+ * Every sample is one record of the columns declared in a {@link Layout}. Each column is one
+ * primitive array holding the value of that column for every slot, and every record has a
+ * sequence number. A single producer (the sampler thread) fills a record with
+ * {@link #begin()}, the put methods and {@link #publish()}. Any number of consumers read with
+ * their own {@link Reader}, which copies a record into its preallocated row and then checks
+ * that the producer did not overwrite the slot while it was copying. Neither side takes a lock
+ * or allocates.
+ */
+public class TelemetryRing {
+    public static final int TYPE_LONG = 0;
+    public static final int TYPE_DOUBLE = 1;
+    // Held as a double in the ring, marks values that only have float precision
+    public static final int TYPE_FLOAT = 2;
+
+    /** The names and types of the columns of every record. */
+    public static final class Layout {
+        final ArrayList<String> names = new ArrayList<>();
+        final ArrayList<Integer> types = new ArrayList<>();
+
+        // Each returns the index of the new column
+        public int addLong(String name) {
+            return add(name, TYPE_LONG);
+        }
+
+        public int addDouble(String name) {
+            return add(name, TYPE_DOUBLE);
+        }
+
+        // Written with putDouble and read with getDouble like a double column
+        public int addFloat(String name) {
+            return add(name, TYPE_FLOAT);
+        }
+
+        private int add(String name, int type) {
+            names.add(name);
+            types.add(type);
+            return names.size() - 1;
+        }
+
+        public int getColumnCount() {
+            return names.size();
+        }
+
+        public String getName(int column) {
+            return names.get(column);
+        }
+
+        public int getType(int column) {
+            return types.get(column);
+        }
+
+        // Index of the first column with that name, -1 if there is none
+        public int indexOf(String name) {
+            return names.indexOf(name);
+        }
+    }
+
+    private final Layout layout;
+    private final int mask;
+    // One array per column, doubles are stored as their raw bits. The atomic arrays give the
+    // ordering the readers' overwrite check relies on.
+    private final AtomicLongArray[] columns;
+    // Sequence of the record being written, the slot of which readers must not trust
+    private final AtomicLong claimed = new AtomicLong(-1);
+    // Sequence of the last published record, -1 before the first one
+    private final AtomicLong published = new AtomicLong(-1);
+    private int writeSlot;
+
+    // capacity is rounded up to a power of two
+    public TelemetryRing(Layout layout, int capacity) {
+        this.layout = layout;
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mask = size - 1;
+        columns = new AtomicLongArray[layout.getColumnCount()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = new AtomicLongArray(size);
+        }
+    }
+
+    public Layout getLayout() {
+        return layout;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    // Producer only: starts the next record and returns its sequence number
+    public long begin() {
+        long sequence = published.get() + 1;
+        claimed.set(sequence);
+        writeSlot = (int) (sequence & mask);
+        return sequence;
+    }
+
+    // Producer only
+    public void putLong(int column, long value) {
+        columns[column].lazySet(writeSlot, value);
+    }
+
+    // Producer only
+    public void putDouble(int column, double value) {
+        columns[column].lazySet(writeSlot, Double.doubleToRawLongBits(value));
+    }
+
+    // Producer only: makes the record started by begin() visible to readers
+    public void publish() {
+        published.set(claimed.get());
+    }
+
+    public long getLatestSequence() {
+        return published.get();
+    }
+
+    // The oldest sequence that can still be read, its slot is not being reused yet
+    public long getOldestSequence() {
+        long latest = published.get();
+        return Math.max(0, latest - mask + 1);
+    }
+
+    public Reader newReader() {
+        return new Reader();
+    }
+
+    /** A consumer's view of the ring. Each consumer thread uses its own reader. */
+    public final class Reader {
+        private final long[] row = new long[columns.length];
+        private long sequence = -1;
+        private long next;
+        private long missed;
+
+        // Copies the record with that sequence. Returns false if it is not published yet or
+        // was already overwritten.
+        public boolean read(long sequence) {
+            if (sequence < 0 || sequence > published.get()) return false;
+            int slot = (int) (sequence & mask);
+            for (int i = 0; i < columns.length; i++) {
+                row[i] = columns[i].get(slot);
+            }
+            // The slot is reused by sequence + capacity, fail if that was already claimed
+            if (claimed.get() - sequence > mask) return false;
+            this.sequence = sequence;
+            return true;
+        }
+
+        public boolean readLatest() {
+            return read(published.get());
+        }
+
+        // Reads the record after the last one returned by readNext, skipping and counting
+        // records that were overwritten before this reader got to them
+        public boolean readNext() {
+            while (next <= published.get()) {
+                long oldest = getOldestSequence();
+                if (next < oldest) {
+                    missed += oldest - next;
+                    next = oldest;
+                }
+                if (read(next)) {
+                    next++;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Sequence of the record currently held by this reader
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getLong(int column) {
+            return row[column];
+        }
+
+        public double getDouble(int column) {
+            return Double.longBitsToDouble(row[column]);
+        }
+
+        // Records readNext had to skip
+        public long getMissed() {
+            return missed;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes all telemetry files from one low-priority background thread.
+ *
+ * Producers hand rows to {@link #write(Stream, CharSequence)}, which only enqueues them on a
+ * bounded queue and never blocks; if the queue is full the row is dropped and counted. The
+ * writer thread batches rows into a buffer per file, keeps every file open for the whole run
+ * and writes the buffers out every flush interval, or right away on {@link #flush()} and
+ * {@link #requestFlush()}.
+ */
+public class TelemetryWriter {
+    private static final String TAG = "TelemetryWriter";
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 1000;
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final long FLUSH_TIMEOUT_MS = 2000;
+
+    /** A telemetry file that stays open until the writer is closed. */
+    public static final class Stream {
+        final String path;
+        final ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+        FileChannel channel;
+
+        Stream(String path) {
+            this.path = path;
+        }
+
+        public String getPath() {
+            return path;
+        }
+    }
+
+    private static final class Entry {
+        final Stream stream;
+        final String row;
+        final CountDownLatch flushed;
+
+        Entry(Stream stream, String row, CountDownLatch flushed) {
+            this.stream = stream;
+            this.row = row;
+            this.flushed = flushed;
+        }
+    }
+
+    private static final Entry CLOSE = new Entry(null, null, null);
+    private static final Entry FLUSH = new Entry(null, null, null);
+
+    private final long flushIntervalNanos;
+    private final ArrayBlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final ArrayList<Stream> streams = new ArrayList<>();
+    private final AtomicLong droppedRows = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    public TelemetryWriter(long flushIntervalMs) {
+        flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+        thread = new Thread(this::run, TAG);
+        thread.start();
+    }
+
+    // Creates or truncates the file and queues its header row
+    public Stream open(String path, CharSequence header) {
+        Stream stream = new Stream(path);
+        write(stream, header);
+        return stream;
+    }
+
+    // Queues one row. Returns false if the queue was full and the row was dropped.
+    public boolean write(Stream stream, CharSequence row) {
+        if (closed || !queue.offer(new Entry(stream, row.toString(), null))) {
+            droppedRows.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    // Writes out everything queued so far and waits for it to reach the disk, e.g. when the
+    // activity pauses or an experiment stops
+    public void flush() {
+        if (closed) return;
+        CountDownLatch flushed = new CountDownLatch(1);
+        try {
+            queue.put(new Entry(null, null, flushed));
+            if (!flushed.await(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timed out waiting for flush");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Like flush() without waiting for the disk, for the main thread, e.g. in onPause. Returns
+    // false if the queue was full, the rows then go out with the next periodic write.
+    public boolean requestFlush() {
+        return !closed && queue.offer(FLUSH);
+    }
+
+    // Stops taking rows and returns right away. The writer thread writes out and forces
+    // everything queued before, then closes the files, also when the queue is too full to
+    // take the close entry.
+    public void close() {
+        if (closed) return;
+        closed = true;
+        queue.offer(CLOSE);
+    }
+
+    public long getDroppedRows() {
+        return droppedRows.get();
+    }
+
+    private void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        ArrayList<Entry> batch = new ArrayList<>();
+        long nextFlush = System.nanoTime() + flushIntervalNanos;
+        while (true) {
+            try {
+                Entry first = queue.poll(Math.max(0, nextFlush - System.nanoTime()),
+                        TimeUnit.NANOSECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                }
+            } catch (InterruptedException e) {
+                batch.add(CLOSE);
+            }
+
+            for (int i = 0; i < batch.size(); i++) {
+                Entry entry = batch.get(i);
+                if (entry == CLOSE) {
+                    writeAll(true);
+                    closeAll();
+                    return;
+                } else if (entry == FLUSH) {
+                    writeAll(true);
+                } else if (entry.flushed != null) {
+                    writeAll(true);
+                    entry.flushed.countDown();
+                } else {
+                    append(entry.stream, entry.row);
+                }
+            }
+            batch.clear();
+
+            // The close entry did not fit, nothing can be queued any more once the queue is empty
+            if (closed && queue.isEmpty()) {
+                writeAll(true);
+                closeAll();
+                return;
+            }
+
+            if (System.nanoTime() >= nextFlush) {
+                writeAll(false);
+                nextFlush = System.nanoTime() + flushIntervalNanos;
+            }
+        }
+    }
+
+    private void append(Stream stream, String row) {
+        if (stream.channel == null && !openChannel(stream)) {
+            droppedRows.incrementAndGet();
+            return;
+        }
+        for (int i = 0; i < row.length(); i++) {
+            char c = row.charAt(i);
+            if (c >= 0x80) {
+                // Rows are almost always ASCII, only encode the rare others in bulk
+                appendBytes(stream, row.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            if (!stream.buffer.hasRemaining()) {
+                writeBuffer(stream, false);
+            }
+            stream.buffer.put((byte) c);
+        }
+    }
+
+    private void appendBytes(Stream stream, byte[] bytes) {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!stream.buffer.hasRemaining()) {
+                writeBuffer(stream, false);
+            }
+            int count = Math.min(stream.buffer.remaining(), bytes.length - offset);
+            stream.buffer.put(bytes, offset, count);
+            offset += count;
+        }
+    }
+
+    private boolean openChannel(Stream stream) {
+        try {
+            stream.channel = new FileOutputStream(stream.path, false).getChannel();
+            streams.add(stream);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open " + stream.path, e);
+            return false;
+        }
+    }
+
+    private void writeAll(boolean force) {
+        for (Stream stream : streams) {
+            writeBuffer(stream, force);
+        }
+    }
+
+    private void writeBuffer(Stream stream, boolean force) {
+        stream.buffer.flip();
+        try {
+            while (stream.buffer.hasRemaining()) {
+                stream.channel.write(stream.buffer);
+            }
+            if (force) {
+                stream.channel.force(false);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing " + stream.path, e);
+        }
+        stream.buffer.clear();
+    }
+
+    private void closeAll() {
+        for (Stream stream : streams) {
+            try {
+                stream.channel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing " + stream.path, e);
+            }
+        }
+        streams.clear();
+    }
+}
@@ -0,0 +1,115 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * Polls PowerManager.getThermalHeadroom for several forecast horizons and records thermal
+ * events.
+ *
+ * The platform returns NaN when the headroom is requested more than about once per second, so
+ * one horizon is polled per {@link #POLL_PERIOD_MS}, round-robin, and each keeps its last valid
+ * value. A headroom of 1.0 is where the device reaches THERMAL_STATUS_SEVERE.
+ *
+ * Status changes from PFManager, experiment markers and each horizon crossing 1.0 in either
+ * direction are written to an events CSV, stamped with {@link ExperimentClock} like the
+ * telemetry samples.
+ */
+public class ThermalHeadroomMonitor {
+    private static final String TAG = "ThermalHeadroom";
+    public static final long POLL_PERIOD_MS = 1000;
+    public static final int[] HORIZONS_SECONDS = {0, 10, 30};
+
+    private final PowerManager powerManager;
+    private final TelemetryWriter telemetryWriter;
+    private final TelemetryWriter.Stream eventStream;
+    private final SamplerScheduler scheduler;
+    private final float[] headroom = new float[HORIZONS_SECONDS.length];
+    private final boolean[] exceeded = new boolean[HORIZONS_SECONDS.length];
+    private final StringBuilder event = new StringBuilder();
+    private int nextHorizon;
+    private volatile int thermalStatus = PowerManager.THERMAL_STATUS_NONE;
+    private volatile long rateLimitedPolls;
+
+    public ThermalHeadroomMonitor(Context context, TelemetryWriter telemetryWriter, String eventsPath) {
+        powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        this.telemetryWriter = telemetryWriter;
+        StringBuilder header = new StringBuilder("time,event,thermalStatus");
+        for (int seconds : HORIZONS_SECONDS) {
+            header.append(",headroom").append(seconds).append('s');
+        }
+        eventStream = telemetryWriter.open(eventsPath, header.append('\n'));
+        for (int i = 0; i < headroom.length; i++) {
+            headroom[i] = Float.NaN;
+        }
+        scheduler = new SamplerScheduler(TAG, POLL_PERIOD_MS);
+        scheduler.addSource("headroom", this::poll);
+    }
+
+    public void start() {
+        if (powerManager != null) {
+            thermalStatus = powerManager.getCurrentThermalStatus();
+        }
+        scheduler.start();
+    }
+
+    public void stop() {
+        scheduler.stop();
+    }
+
+    public int getHorizonCount() {
+        return HORIZONS_SECONDS.length;
+    }
+
+    // Last valid headroom of a horizon of HORIZONS_SECONDS, NaN until the first one
+    public float getHeadroom(int horizon) {
+        return headroom[horizon];
+    }
+
+    public int getThermalStatus() {
+        return thermalStatus;
+    }
+
+    // Polls that returned NaN, i.e. were rate limited or not supported
+    public long getRateLimitedPolls() {
+        return rateLimitedPolls;
+    }
+
+    // Called on the DataProcessor actor thread, which receives the status from PFManager
+    public void onThermalStatusChanged(int status) {
+        thermalStatus = status;
+        recordEvent("status:" + PFManager.getThermalStatusName(status));
+    }
+
+    private void poll() {
+        if (powerManager == null) return;
+        int horizon = nextHorizon;
+        nextHorizon = (nextHorizon + 1) % HORIZONS_SECONDS.length;
+        float value = powerManager.getThermalHeadroom(HORIZONS_SECONDS[horizon]);
+        if (Float.isNaN(value)) {
+            rateLimitedPolls++;
+            return;
+        }
+        headroom[horizon] = value;
+        if (value >= 1f != exceeded[horizon]) {
+            exceeded[horizon] = value >= 1f;
+            recordEvent((exceeded[horizon] ? "headroomExceeded:" : "headroomRecovered:")
+                    + HORIZONS_SECONDS[horizon] + "s");
+        }
+    }
+
+    // Writes a timestamped event, also used for experiment markers
+    public synchronized void recordEvent(String name) {
+        Log.d(TAG, name);
+        event.setLength(0);
+        event.append(ExperimentClock.now()).append(',')
+                .append(name).append(',')
+                .append(thermalStatus);
+        for (int i = 0; i < headroom.length; i++) {
+            event.append(',').append(getHeadroom(i));
+        }
+        event.append('\n');
+        telemetryWriter.write(eventStream, event);
+    }
+}
@@ -0,0 +1,199 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+/**
+ * Forecasts the thermal zone temperatures from the telemetry samples.
+ *
+ * Each zone follows a first order ARX model, T[k+1] = a*T[k] + b*P[k] + c, where P is the
+ * estimated SoC power and c absorbs the ambient temperature. The parameters are fitted online
+ * by recursive least squares with exponential forgetting, one step being one sampling period.
+ * Forecasts assume the power stays at its last value, which gives the closed form
+ * T[k+n] = T_inf + (T[k] - T_inf)*a^n with T_inf = (b*P + c) / (1 - a).
+ *
+ * Everything is preallocated, {@link #update} is meant to be called from the sampler thread.
+ * The getters may be called from other threads, a forecast read during an update may mix the
+ * parameters of two consecutive samples.
+ */
+public class ThermalPredictor {
+    // Forgets half of the evidence in about 140 samples, so the model follows e.g. a case
+    // being put on or the phone being picked up
+    public static final double FORGETTING_FACTOR = 0.995;
+    // Samples before a zone's forecasts are used
+    public static final int WARM_UP_SAMPLES = 20;
+    private static final double INITIAL_COVARIANCE = 1000;
+    private static final int PARAMETERS = 3;
+
+    private final int zoneCount;
+    // a, b and c of each zone
+    private final double[][] theta;
+    // RLS covariance of each zone, row-major 3x3
+    private final double[][] covariance;
+    private final double[] previousTemperature;
+    private final int[] samples;
+    private final float[] throttleTemperature;
+    private final double[] phi = new double[PARAMETERS];
+    private final double[] gain = new double[PARAMETERS];
+    private final double[] covariancePhi = new double[PARAMETERS];
+    private double previousPower;
+    private long previousNanos;
+    private volatile double power;
+    // Average sampling period, the unit of the model's time steps
+    private volatile double stepNanos;
+
+    public ThermalPredictor(int zoneCount) {
+        this.zoneCount = zoneCount;
+        theta = new double[zoneCount][PARAMETERS];
+        covariance = new double[zoneCount][PARAMETERS * PARAMETERS];
+        previousTemperature = new double[zoneCount];
+        samples = new int[zoneCount];
+        throttleTemperature = new float[zoneCount];
+        for (int zone = 0; zone < zoneCount; zone++) {
+            throttleTemperature[zone] = Float.NaN;
+            reset(zone);
+        }
+    }
+
+    public int getZoneCount() {
+        return zoneCount;
+    }
+
+    // Temperature at which the zone starts throttling, e.g. its first trip point. Zones
+    // without one report no time to throttle.
+    public void setThrottleTemperature(int zone, float celsius) {
+        throttleTemperature[zone] = celsius;
+    }
+
+    // One telemetry sample. Temperatures below -100 are treated as unreadable and skipped.
+    public void update(long timeNanos, float powerWatts, float[] temperatures) {
+        if (previousNanos != 0) {
+            long elapsed = timeNanos - previousNanos;
+            // The model is per sampling period, start over when the period changes a lot
+            if (stepNanos > 0 && (elapsed > 2 * stepNanos || elapsed < stepNanos / 2)) {
+                for (int zone = 0; zone < zoneCount; zone++) {
+                    reset(zone);
+                }
+                stepNanos = elapsed;
+            } else {
+                stepNanos = stepNanos == 0 ? elapsed : 0.9 * stepNanos + 0.1 * elapsed;
+            }
+        }
+        for (int zone = 0; zone < zoneCount; zone++) {
+            double temperature = temperatures[zone];
+            if (temperature < -100) {
+                samples[zone] = 0;
+                continue;
+            }
+            if (samples[zone] > 0 && previousNanos != 0) {
+                phi[0] = previousTemperature[zone];
+                phi[1] = previousPower;
+                phi[2] = 1;
+                updateZone(zone, temperature);
+            }
+            previousTemperature[zone] = temperature;
+            samples[zone]++;
+        }
+        previousPower = powerWatts;
+        previousNanos = timeNanos;
+        power = powerWatts;
+    }
+
+    // Whether the zone has enough samples for its forecasts
+    public boolean isReady(int zone) {
+        return samples[zone] > WARM_UP_SAMPLES && stepNanos > 0;
+    }
+
+    // Forecast of the zone's temperature, the current one until the zone is ready
+    public float predictTemperature(int zone, long horizonMs) {
+        double current = previousTemperature[zone];
+        if (!isReady(zone)) return (float) current;
+        double a = theta[zone][0];
+        double steps = horizonMs * 1e6 / stepNanos;
+        if (a <= 0 || a >= 1) {
+            // Not a stable first order response, extrapolate the next step linearly
+            double next = a * current + theta[zone][1] * power + theta[zone][2];
+            return (float) (current + (next - current) * steps);
+        }
+        double steady = steadyTemperature(zone);
+        return (float) (steady + (current - steady) * Math.pow(a, steps));
+    }
+
+    // Temperature the zone settles at if the power stays the same, NaN until ready
+    public float getSteadyTemperature(int zone) {
+        if (!isReady(zone) || theta[zone][0] <= 0 || theta[zone][0] >= 1) return Float.NaN;
+        return (float) steadyTemperature(zone);
+    }
+
+    // Milliseconds until the zone reaches its throttle temperature at the current power, 0 if
+    // it is already there and -1 if it is not expected to get there
+    public long getTimeToThrottleMs(int zone) {
+        float threshold = throttleTemperature[zone];
+        if (Float.isNaN(threshold) || !isReady(zone)) return -1;
+        double current = previousTemperature[zone];
+        if (current >= threshold) return 0;
+        double a = theta[zone][0];
+        double steps;
+        if (a <= 0 || a >= 1) {
+            double slope = a * current + theta[zone][1] * power + theta[zone][2] - current;
+            if (slope <= 0) return -1;
+            steps = (threshold - current) / slope;
+        } else {
+            double steady = steadyTemperature(zone);
+            if (steady <= threshold) return -1;
+            steps = Math.log((steady - threshold) / (steady - current)) / Math.log(a);
+        }
+        return (long) (steps * stepNanos / 1e6);
+    }
+
+    // The earliest time to throttle of all zones, -1 if none is expected to throttle
+    public long getTimeToThrottleMs() {
+        long earliest = -1;
+        for (int zone = 0; zone < zoneCount; zone++) {
+            long time = getTimeToThrottleMs(zone);
+            if (time >= 0 && (earliest < 0 || time < earliest)) {
+                earliest = time;
+            }
+        }
+        return earliest;
+    }
+
+    private double steadyTemperature(int zone) {
+        double[] parameters = theta[zone];
+        return (parameters[1] * power + parameters[2]) / (1 - parameters[0]);
+    }
+
+    private void updateZone(int zone, double temperature) {
+        double[] parameters = theta[zone];
+        double[] p = covariance[zone];
+        double denominator = FORGETTING_FACTOR;
+        for (int i = 0; i < PARAMETERS; i++) {
+            double sum = 0;
+            for (int j = 0; j < PARAMETERS; j++) {
+                sum += p[i * PARAMETERS + j] * phi[j];
+            }
+            covariancePhi[i] = sum;
+            denominator += phi[i] * sum;
+        }
+        double error = temperature;
+        for (int i = 0; i < PARAMETERS; i++) {
+            gain[i] = covariancePhi[i] / denominator;
+            error -= parameters[i] * phi[i];
+        }
+        for (int i = 0; i < PARAMETERS; i++) {
+            parameters[i] += gain[i] * error;
+            for (int j = 0; j < PARAMETERS; j++) {
+                p[i * PARAMETERS + j] = (p[i * PARAMETERS + j] - gain[i] * covariancePhi[j]) / FORGETTING_FACTOR;
+            }
+        }
+    }
+
+    private void reset(int zone) {
+        // Start from "the temperature stays where it is"
+        theta[zone][0] = 1;
+        theta[zone][1] = 0;
+        theta[zone][2] = 0;
+        double[] p = covariance[zone];
+        for (int i = 0; i < p.length; i++) {
+            p[i] = i % (PARAMETERS + 1) == 0 ? INITIAL_COVARIANCE : 0;
+        }
+        samples[zone] = Math.min(samples[zone], 1);
+    }
+}
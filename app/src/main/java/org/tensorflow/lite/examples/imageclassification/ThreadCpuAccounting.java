@@ -0,0 +1,248 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Per-thread CPU accounting for the threads that run inference, read from /proc/self/task.
+ *
+ * Threads are attributed to the model index of the ImageClassifierHelperKotlin that uses them:
+ * the thread calling classify() claims itself with {@link #claimThread(int, int)}, and threads
+ * that TFLite starts while a helper sets up its interpreter are claimed through
+ * {@link #beginSpawnWindow(int)} and {@link #endSpawnWindow(int)}. Every {@link #sample()}
+ * re-reads stat and schedstat of the claimed threads and reports, per thread and per model,
+ * the CPU time and run-queue wait since the previous sample and the last CPU a thread ran on.
+ */
+public class ThreadCpuAccounting {
+    // Model index of threads whose owner could not be told apart
+    public static final int UNATTRIBUTED = -1;
+    public static final int MAX_MODELS = 8;
+
+    private static final class ThreadEntry {
+        final int tid;
+        int modelIndex;
+        RandomAccessFile stat;
+        RandomAccessFile schedstat;
+        boolean started;
+        long previousCpuNanos;
+        long previousWaitNanos;
+        long cpuNanos;
+        long waitNanos;
+        int lastCpu = -1;
+
+        ThreadEntry(int tid, int modelIndex) {
+            this.tid = tid;
+            this.modelIndex = modelIndex;
+        }
+    }
+
+    private final long nanosPerClockTick = 1000000000L / Os.sysconf(OsConstants._SC_CLK_TCK);
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+    private final long[] fields = new long[3];
+    private final ArrayList<ThreadEntry> threads = new ArrayList<>();
+    private final ArrayList<HashSet<Integer>> spawnWindows = new ArrayList<>();
+    private final int[] openWindowIndices = new int[MAX_MODELS];
+    private final long[] modelCpuNanos = new long[MAX_MODELS];
+    private final long[] modelWaitNanos = new long[MAX_MODELS];
+
+    // Attributes a thread to a model. Later claims move the thread to the new owner.
+    public synchronized void claimThread(int tid, int modelIndex) {
+        ThreadEntry entry = find(tid);
+        if (entry == null) {
+            threads.add(new ThreadEntry(tid, modelIndex));
+        } else {
+            entry.modelIndex = modelIndex;
+        }
+    }
+
+    // Remembers the threads that exist before a model creates its interpreter
+    public synchronized void beginSpawnWindow(int modelIndex) {
+        openWindowIndices[spawnWindows.size()] = modelIndex;
+        spawnWindows.add(listThreads());
+    }
+
+    // Attributes the threads created since the matching beginSpawnWindow to the model. When
+    // several models were set up at the same time, their new threads stay unattributed.
+    public synchronized void endSpawnWindow(int modelIndex) {
+        int window = -1;
+        for (int i = 0; i < spawnWindows.size(); i++) {
+            if (openWindowIndices[i] == modelIndex) {
+                window = i;
+                break;
+            }
+        }
+        if (window < 0) return;
+        HashSet<Integer> before = spawnWindows.get(window);
+        int owner = spawnWindows.size() == 1 ? modelIndex : UNATTRIBUTED;
+        for (Integer tid : listThreads()) {
+            if (!before.contains(tid) && find(tid) == null) {
+                threads.add(new ThreadEntry(tid, owner));
+            }
+        }
+        spawnWindows.remove(window);
+        System.arraycopy(openWindowIndices, window + 1, openWindowIndices, window,
+                spawnWindows.size() - window);
+    }
+
+    // Updates the per-thread and per-model deltas. Threads that have exited are dropped.
+    public synchronized void sample() {
+        for (int i = 0; i < MAX_MODELS; i++) {
+            modelCpuNanos[i] = 0;
+            modelWaitNanos[i] = 0;
+        }
+        for (int i = threads.size() - 1; i >= 0; i--) {
+            ThreadEntry entry = threads.get(i);
+            if (!sampleThread(entry)) {
+                close(entry);
+                threads.remove(i);
+                continue;
+            }
+            if (entry.modelIndex >= 0 && entry.modelIndex < MAX_MODELS) {
+                modelCpuNanos[entry.modelIndex] += entry.cpuNanos;
+                modelWaitNanos[entry.modelIndex] += entry.waitNanos;
+            }
+        }
+    }
+
+    public synchronized int getThreadCount() {
+        return threads.size();
+    }
+
+    public synchronized int getTid(int thread) {
+        return threads.get(thread).tid;
+    }
+
+    public synchronized int getModelIndex(int thread) {
+        return threads.get(thread).modelIndex;
+    }
+
+    public synchronized long getCpuTimeNanos(int thread) {
+        return threads.get(thread).cpuNanos;
+    }
+
+    public synchronized long getRunQueueWaitNanos(int thread) {
+        return threads.get(thread).waitNanos;
+    }
+
+    public synchronized int getLastCpu(int thread) {
+        return threads.get(thread).lastCpu;
+    }
+
+    public synchronized long getModelCpuTimeNanos(int modelIndex) {
+        return modelIndex < MAX_MODELS ? modelCpuNanos[modelIndex] : 0;
+    }
+
+    public synchronized long getModelRunQueueWaitNanos(int modelIndex) {
+        return modelIndex < MAX_MODELS ? modelWaitNanos[modelIndex] : 0;
+    }
+
+    public synchronized void close() {
+        for (ThreadEntry entry : threads) {
+            close(entry);
+        }
+        threads.clear();
+    }
+
+    private boolean sampleThread(ThreadEntry entry) {
+        if (entry.stat == null) {
+            String taskPath = "/proc/self/task/" + entry.tid;
+            try {
+                entry.stat = new RandomAccessFile(taskPath + "/stat", "r");
+            } catch (IOException e) {
+                return false;
+            }
+            try {
+                entry.schedstat = new RandomAccessFile(taskPath + "/schedstat", "r");
+            } catch (IOException e) {
+                // Kernels without CONFIG_SCHEDSTATS, CPU time then comes from stat
+            }
+        }
+
+        // stat: utime and stime are fields 14 and 15, the processor is field 39
+        int length = read(entry.stat);
+        if (length <= 0) return false;
+        int pos = length - 1;
+        while (pos > 0 && buffer.get(pos) != ')') {
+            pos--;
+        }
+        int start = SysfsSampler.skipTokens(buffer, pos + 1, length, 11);
+        SysfsSampler.parseFields(buffer, start, length, fields, 0, 2);
+        long cpuNanos = (fields[0] + fields[1]) * nanosPerClockTick;
+        start = SysfsSampler.skipTokens(buffer, start, length, 25);
+        SysfsSampler.parseFields(buffer, start, length, fields, 0, 1);
+        entry.lastCpu = (int) fields[0];
+
+        // schedstat: "<time on cpu ns> <time waiting on a run queue ns> <timeslices>"
+        long waitNanos = 0;
+        if (entry.schedstat != null) {
+            length = read(entry.schedstat);
+            if (length > 0 && SysfsSampler.parseFields(buffer, 0, length, fields, 0, 2) == 2) {
+                cpuNanos = fields[0];
+                waitNanos = fields[1];
+            }
+        }
+
+        if (entry.started) {
+            entry.cpuNanos = cpuNanos - entry.previousCpuNanos;
+            entry.waitNanos = waitNanos - entry.previousWaitNanos;
+        }
+        entry.started = true;
+        entry.previousCpuNanos = cpuNanos;
+        entry.previousWaitNanos = waitNanos;
+        return true;
+    }
+
+    private int read(RandomAccessFile file) {
+        buffer.clear();
+        try {
+            FileChannel channel = file.getChannel();
+            int length = 0;
+            int count;
+            while (buffer.hasRemaining() && (count = channel.read(buffer, length)) > 0) {
+                length += count;
+            }
+            return length;
+        } catch (IOException e) {
+            // The thread has exited
+            return -1;
+        }
+    }
+
+    private ThreadEntry find(int tid) {
+        for (ThreadEntry entry : threads) {
+            if (entry.tid == tid) return entry;
+        }
+        return null;
+    }
+
+    private static HashSet<Integer> listThreads() {
+        HashSet<Integer> tids = new HashSet<>();
+        String[] taskNames = new File("/proc/self/task").list();
+        if (taskNames == null) return tids;
+        for (String taskName : taskNames) {
+            try {
+                tids.add(Integer.parseInt(taskName));
+            } catch (NumberFormatException e) {
+                // Not a thread directory
+            }
+        }
+        return tids;
+    }
+
+    private static void close(ThreadEntry entry) {
+        try {
+            if (entry.stat != null) entry.stat.close();
+            if (entry.schedstat != null) entry.schedstat.close();
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package org.tensorflow.lite.examples.imageclassification;
+
+import android.os.Process;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes inferences, telemetry counters and thermal events to one trace file in the Chrome
+ * JSON trace format, which ui.perfetto.dev and chrome://tracing open as is.
+ *
+ * Every timestamp is in nanoseconds of {@link ExperimentClock}, written in microseconds, so
+ * inference slices, counter samples and thermal events share one monotonic clock. Each model
+ * gets a track of complete ("X") events, each counter a counter ("C") track and thermal status
+ * changes and markers are global instant ("i") events.
+ *
+ * Inference threads only {@link #recordSlice} into a preallocated ring per track, without
+ * locks or allocation. Everything else, including draining the rings, is called from one
+ * thread, the DataProcessor actor, which batches the events of a tick into a single write.
+ */
+public class TraceExporter {
+    public static final int MAX_TRACKS = ThreadCpuAccounting.MAX_MODELS;
+    // Slices a track can hold between two drains, about 2 s of inferences at 2 kHz
+    public static final int SLICE_CAPACITY = 4096;
+
+    private final TelemetryWriter telemetryWriter;
+    private final TelemetryWriter.Stream stream;
+    private final int pid = Process.myPid();
+    private final StringBuilder events = new StringBuilder();
+    private boolean firstEvent = true;
+    private boolean closed;
+
+    // Single producer, single consumer rings of the start and end of each slice
+    private final long[][] sliceStarts = new long[MAX_TRACKS][SLICE_CAPACITY];
+    private final long[][] sliceEnds = new long[MAX_TRACKS][SLICE_CAPACITY];
+    private final AtomicLong[] written = new AtomicLong[MAX_TRACKS];
+    private final AtomicLong[] read = new AtomicLong[MAX_TRACKS];
+    private final AtomicLong droppedSlices = new AtomicLong();
+    private final String[] trackNames = new String[MAX_TRACKS];
+    private final String[] namedTracks = new String[MAX_TRACKS];
+
+    public TraceExporter(TelemetryWriter telemetryWriter, String path) {
+        this.telemetryWriter = telemetryWriter;
+        for (int track = 0; track < MAX_TRACKS; track++) {
+            written[track] = new AtomicLong();
+            read[track] = new AtomicLong();
+        }
+        // The first event goes with the header, so that every later row starts with a comma
+        events.append("[\n");
+        beginEvent("process_name", 'M');
+        events.append(",\"args\":{\"name\":\"AI_THM\"}}");
+        stream = telemetryWriter.open(path, events);
+        events.setLength(0);
+    }
+
+    // Names the slices of a track, e.g. after the model, from any thread
+    public void setTrackName(int track, String name) {
+        if (track < 0 || track >= MAX_TRACKS) return;
+        synchronized (trackNames) {
+            trackNames[track] = name;
+        }
+    }
+
+    // One inference of a track's model. Lock-free, one thread per track at a time.
+    public void recordSlice(int track, long startNanos, long endNanos) {
+        if (track < 0 || track >= MAX_TRACKS) return;
+        AtomicLong count = written[track];
+        long next = count.get();
+        if (next - read[track].get() >= SLICE_CAPACITY) {
+            droppedSlices.incrementAndGet();
+            return;
+        }
+        int slot = (int) (next % SLICE_CAPACITY);
+        sliceStarts[track][slot] = startNanos;
+        sliceEnds[track][slot] = endNanos;
+        count.lazySet(next + 1);
+    }
+
+    // Slices lost because a track's ring was full when it was drained too late
+    public long getDroppedSlices() {
+        return droppedSlices.get();
+    }
+
+    // A sample of a counter track, e.g. a zone temperature
+    public void counter(String name, String unit, long nanos, double value) {
+        if (closed) return;
+        beginEvent(name, 'C');
+        appendTimestamp(nanos);
+        events.append(",\"args\":{\"");
+        appendEscaped(unit);
+        events.append("\":").append(Double.isNaN(value) || Double.isInfinite(value) ? 0 : value).append('}');
+        events.append('}');
+    }
+
+    // An event drawn across all tracks, e.g. a thermal status change
+    public void instant(String name, long nanos) {
+        if (closed) return;
+        beginEvent(name, 'i');
+        appendTimestamp(nanos);
+        events.append(",\"s\":\"g\"}");
+    }
+
+    // Writes the slices recorded since the last call and the counters and instants added on
+    // this thread as one row
+    public void drain() {
+        if (closed) return;
+        synchronized (trackNames) {
+            for (int track = 0; track < MAX_TRACKS; track++) {
+                String name = trackNames[track];
+                if (name == null || name.equals(namedTracks[track])) continue;
+                beginEvent("thread_name", 'M');
+                events.append(",\"tid\":").append(track + 1).append(",\"args\":{\"name\":\"");
+                appendEscaped(name);
+                events.append("\"}}");
+                namedTracks[track] = name;
+            }
+        }
+        for (int track = 0; track < MAX_TRACKS; track++) {
+            long end = written[track].get();
+            for (long next = read[track].get(); next < end; next++) {
+                int slot = (int) (next % SLICE_CAPACITY);
+                String name = namedTracks[track];
+                beginEvent(name == null ? "inference" : name, 'X');
+                events.append(",\"tid\":").append(track + 1);
+                appendTimestamp(sliceStarts[track][slot]);
+                events.append(",\"dur\":");
+                appendMicros(sliceEnds[track][slot] - sliceStarts[track][slot]);
+                events.append('}');
+            }
+            read[track].lazySet(end);
+        }
+        flushEvents();
+    }
+
+    // Drains and ends the JSON array. The writer is flushed and closed by its owner.
+    public void close() {
+        if (closed) return;
+        drain();
+        closed = true;
+        telemetryWriter.write(stream, "\n]\n");
+    }
+
+    private void beginEvent(String name, char phase) {
+        events.append(firstEvent ? "" : ",\n").append("{\"name\":\"");
+        firstEvent = false;
+        appendEscaped(name);
+        events.append("\",\"ph\":\"").append(phase).append("\",\"pid\":").append(pid);
+    }
+
+    private void appendTimestamp(long nanos) {
+        events.append(",\"ts\":");
+        appendMicros(nanos);
+    }
+
+    // Microseconds with the nanoseconds as three decimals
+    private void appendMicros(long nanos) {
+        if (nanos < 0) {
+            events.append('-');
+            nanos = -nanos;
+        }
+        long fraction = nanos % 1000;
+        events.append(nanos / 1000).append('.');
+        if (fraction < 100) events.append('0');
+        if (fraction < 10) events.append('0');
+        events.append(fraction);
+    }
+
+    private void appendEscaped(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                events.append('\\').append(c);
+            } else if (c < 0x20) {
+                events.append(' ');
+            } else {
+                events.append(c);
+            }
+        }
+    }
+
+    private void flushEvents() {
+        if (events.length() == 0) return;
+        telemetryWriter.write(stream, events);
+        events.setLength(0);
+    }
+}
@@ -1,8 +0,0 @@
-package org.tensorflow.lite.examples.imageclassification.fragments
-
-import android.graphics.Bitmap
-
-class BitmapUpdaterApi {
-    var latestBitmap : Bitmap? = null
-    var latestImageRotation: Int = 0
-}
\ No newline at end of file
@@ -17,10 +17,8 @@ package org.tensorflow.lite.examples.imageclassification.fragments;
 
 import static java.lang.Math.max;
 
-import android.annotation.SuppressLint;
 import android.content.res.Configuration;
 import android.content.res.Resources;
-import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.SystemClock;
@@ -47,13 +45,8 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 
 import com.google.common.util.concurrent.ListenableFuture;
 
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
@@ -62,10 +55,19 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.io.File;
+import java.nio.ByteBuffer;
 
+import org.tensorflow.lite.examples.imageclassification.DataProcessor;
+import org.tensorflow.lite.examples.imageclassification.EnergyAttribution;
+import org.tensorflow.lite.examples.imageclassification.ExperimentClock;
+import org.tensorflow.lite.examples.imageclassification.FramePool;
 import org.tensorflow.lite.examples.imageclassification.ImageClassifierHelperKotlin;
+import org.tensorflow.lite.examples.imageclassification.InferenceStages;
 import org.tensorflow.lite.examples.imageclassification.MainActivity;
+import org.tensorflow.lite.examples.imageclassification.PowerSampler;
 import org.tensorflow.lite.examples.imageclassification.R;
+import org.tensorflow.lite.examples.imageclassification.TelemetryWriter;
+import org.tensorflow.lite.examples.imageclassification.ThreadCpuAccounting;
 import org.tensorflow.lite.examples.imageclassification.databinding.FragmentCameraBinding;
 import org.tensorflow.lite.task.vision.classifier.Classifications;
 
@@ -79,26 +81,36 @@ public class CameraFragment extends Fragment
     private static final String TAG = "Image Classifier";
 
     private FragmentCameraBinding fragmentCameraBinding;
-    private BitmapUpdaterApi bitmapUpdaterApi;
+    // One frame per concurrent model (up to 4), the latest frame and the one being written
+    private static final int FRAME_POOL_SIZE = 6;
+    private FramePool framePool;
     private DynamicBitmapSource source;
     private ImageClassifierHelperKotlin imageClassifierHelper;
     private ArrayList<ImageClassifierHelperKotlin> imageClassifierHelpers;
     private boolean imageClassifierStatus = false;
     private boolean testStatus = false;
-    private Bitmap bitmapBuffer;
     private ClassificationResultAdapter classificationResultsAdapter;
     private ImageAnalysis imageAnalyzer;
     private ProcessCameraProvider cameraProvider;
     private final Object task = new Object();
 
-    private SimpleDateFormat dateFormat;
-    private String fileSeries;
     private final String throughputFileName = "Throughput_Measurements";
+    private final String threadFileName = "Thread_Measurements";
+    private final String stageFileName = "Stage_Latency";
     private String experimet_time;
     private Timer t;
-    private Long startTime;
     private Long testStartTime;
     private List<String> periodOptions;
+    private ThreadCpuAccounting threadAccounting;
+    private TelemetryWriter telemetryWriter;
+    private TelemetryWriter.Stream throughputStream;
+    private TelemetryWriter.Stream threadStream;
+    private TelemetryWriter.Stream stageStream;
+    private final StringBuilder stageRow = new StringBuilder();
+    private PowerSampler powerSampler;
+    private DataProcessor dataProcessor;
+    private final EnergyAttribution energyAttribution = new EnergyAttribution();
+    private final StringBuilder statsRow = new StringBuilder();
 
     /**
      * Blocking camera operations are performed using this executor
@@ -141,7 +153,6 @@ public class CameraFragment extends Fragment
         }
     }
 
-    @SuppressLint("SimpleDateFormat")
     @Override
     public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
         super.onViewCreated(view, savedInstanceState);
@@ -153,11 +164,14 @@ public class CameraFragment extends Fragment
         Resources res = getResources();
         periodOptions = Arrays.asList(res.getStringArray(R.array.period_spinner_options));
 
-        // Set up BitmapUpdaterApi
-        bitmapUpdaterApi = new BitmapUpdaterApi();
+        // Camera frames are written to a pool and published to the models
+        framePool = new FramePool(FRAME_POOL_SIZE);
 
         // Set up DynamicBitmapSource
-        source = new DynamicBitmapSource(bitmapUpdaterApi);
+        source = new DynamicBitmapSource(framePool);
+
+        // Per-thread CPU accounting of the inference threads
+        threadAccounting = new ThreadCpuAccounting();
 
         imageClassifierHelper = new ImageClassifierHelperKotlin(
                 requireContext(),
@@ -165,7 +179,8 @@ public class CameraFragment extends Fragment
                 source,
                 0,
                 0,
-                periodOptions);
+                periodOptions,
+                threadAccounting);
         imageClassifierHelpers = new ArrayList<>();
 //        imageClassifierHelpers.add(imageClassifierHelper);
 
@@ -185,47 +200,55 @@ public class CameraFragment extends Fragment
         // Attach listeners to UI control widgets
         initBottomSheetControls();
 
-        dateFormat = new SimpleDateFormat("HH:mm:ss");
-        fileSeries = dateFormat.format(new Date());
-        String[] timeStampSplit = fileSeries.split(":");
-        startTime = Long.parseLong(timeStampSplit[0]) * 3600 +
-                Long.parseLong(timeStampSplit[1]) * 60 +
-                Long.parseLong(timeStampSplit[2]);
-
         assert mainactivity != null;
         experimet_time =  mainactivity.get_exeriment_time();
         // Create file for data collection
+        telemetryWriter = mainactivity.getTelemetryWriter();
+        powerSampler = mainactivity.getPowerSampler();
+        dataProcessor = mainactivity.getDataProcessor();
         String FILEPATH = currentFolder + File.separator + throughputFileName + experimet_time + ".csv";
-        try (PrintWriter writer = new PrintWriter(new FileOutputStream(FILEPATH, false))) {
-            String sb = "time" +
-                    ',' +
-                    "relativeTime" +
-                    ',' +
-                    "modelIndex" +
-                    ',' +
-                    "model" +
-                    ',' +
-                    "delegate" +
-                    ',' +
-                    "throughput" +
-                    ',' +
-                    "avgThroughput" +
-                    ',' +
-                    "turnAroundTime" +
-                    ',' +
-                    "idleTime" +
-                    ',' +
-                    "avgMeasuredPeriod" +
-                    ',' +
-                    "measuredPeriod" +
-                    ',' +
-                    "targetPeriod" +
-                    '\n';
-            writer.write(sb);
-            System.out.println("Creating " + throughputFileName + " done!");
-        } catch (FileNotFoundException e) {
-            System.out.println(e.getMessage());
-        }
+        String sb = "time" +
+                ',' +
+                "modelIndex" +
+                ',' +
+                "model" +
+                ',' +
+                "delegate" +
+                ',' +
+                "throughput" +
+                ',' +
+                "avgThroughput" +
+                ',' +
+                "turnAroundTime" +
+                ',' +
+                "idleTime" +
+                ',' +
+                "avgMeasuredPeriod" +
+                ',' +
+                "measuredPeriod" +
+                ',' +
+                "targetPeriod" +
+                ',' +
+                "cpuTime" +
+                ',' +
+                "runQueueWait" +
+                ',' +
+                "energy" +
+                ',' +
+                "energyPerInference" +
+                ',' +
+                ImageClassifierHelperKotlin.statsHeader() +
+                '\n';
+        throughputStream = telemetryWriter.open(FILEPATH, sb);
+        System.out.println("Creating " + throughputFileName + " done!");
+        stageStream = telemetryWriter.open(currentFolder + File.separator + stageFileName + experimet_time + ".csv",
+                InferenceStages.header());
+
+        // Create file for per-thread CPU accounting
+        String THREADFILEPATH = currentFolder + File.separator + threadFileName + experimet_time + ".csv";
+        threadStream = telemetryWriter.open(THREADFILEPATH,
+                "time,tid,modelIndex,cpuTime,runQueueWait,lastCpu\n");
+        System.out.println("Creating " + threadFileName + " done!");
     }
 
     @Override
@@ -402,7 +425,10 @@ public class CameraFragment extends Fragment
                             currClassifier.clearImageClassifier();
                         }
                         imageClassifierHelpers.clear();
+                        telemetryWriter.requestFlush();
+                        dataProcessor.mark("testStop");
                     }else {
+                        dataProcessor.mark("testStart");
                         testStartTime = SystemClock.uptimeMillis();
                         configureImageClassifiers();
                         source.startStream();
@@ -489,15 +515,7 @@ public class CameraFragment extends Fragment
 
 
         // The analyzer can then be assigned to the instance
-        imageAnalyzer.setAnalyzer(cameraExecutor, image -> {
-            if (bitmapBuffer == null) {
-                bitmapBuffer = Bitmap.createBitmap(
-                        image.getWidth(),
-                        image.getHeight(),
-                        Bitmap.Config.ARGB_8888);
-            }
-            updateImage(image);
-        });
+        imageAnalyzer.setAnalyzer(cameraExecutor, this::updateImage);
 
         // Must unbind the use-cases before rebinding them
         cameraProvider.unbindAll();
@@ -522,17 +540,29 @@ public class CameraFragment extends Fragment
     }
 
     private void updateImage(@NonNull ImageProxy image) {
-        // Copy out RGB bits to the shared bitmap buffer
-        bitmapBuffer.copyPixelsFromBuffer(image.getPlanes()[0].getBuffer());
-
+        long frameNanos = ExperimentClock.fromCameraTimestamp(image.getImageInfo().getTimestamp());
         int imageRotation = image.getImageInfo().getRotationDegrees();
-        image.close();
-        synchronized (task) {
-            // Pass Bitmap and rotation to the image classifier helper for
-            // processing and classification
-            bitmapUpdaterApi.setLatestBitmap(bitmapBuffer);
-            bitmapUpdaterApi.setLatestImageRotation(imageRotation);
+        ImageProxy.PlaneProxy plane = image.getPlanes()[0];
+        ByteBuffer planeBuffer = plane.getBuffer();
+        // Every frame is still held by a model, skip this image
+        FramePool.Frame frame = framePool.acquireForWrite(image.getWidth(), image.getHeight(),
+                plane.getRowStride(), planeBuffer.remaining());
+        if (frame == null) {
+            image.close();
+            return;
+        }
+        try {
+            // Copy out the RGBA plane to a frame no model is reading, the models convert it
+            // into their input tensors themselves
+            frame.copyFrom(planeBuffer);
+        } catch (RuntimeException e) {
+            framePool.abort(frame);
+            image.close();
+            throw e;
         }
+        image.close();
+        framePool.publish(frame, imageRotation, frameNanos);
+        source.publish(frame.getSequence());
     }
 
     private void configureImageClassifiers() {
@@ -545,28 +575,32 @@ public class CameraFragment extends Fragment
                     source,
                     0,
                     0,
-                    periodOptions);
+                    periodOptions,
+                    threadAccounting);
             ImageClassifierHelperKotlin classifier2 = new ImageClassifierHelperKotlin(
                     requireContext(),
                     this,
                     source,
                     1,
                     1,
-                    periodOptions);
+                    periodOptions,
+                    threadAccounting);
             ImageClassifierHelperKotlin classifier3 = new ImageClassifierHelperKotlin(
                     requireContext(),
                     this,
                     source,
                     2,
                     2,
-                    periodOptions);
+                    periodOptions,
+                    threadAccounting);
             ImageClassifierHelperKotlin Segmenter = new ImageClassifierHelperKotlin(
                     requireContext(),
                     this,
                     source,
                     4,
                     4,
-                    periodOptions);
+                    periodOptions,
+                    threadAccounting);
 
 //            int mainICDelegate = imageClassifierHelper.getCurrentDelegateNum();
 //            int mainICPeriod = imageClassifierHelper.getCurrentTaskPeriod();
@@ -588,6 +622,9 @@ public class CameraFragment extends Fragment
             imageClassifierHelpers.add(classifier2);
 //            imageClassifierHelpers.add(classifier3);
             imageClassifierHelpers.add(Segmenter);
+            for (ImageClassifierHelperKotlin currClassifier : imageClassifierHelpers) {
+                currClassifier.setTraceExporter(dataProcessor.getTraceExporter());
+            }
         }
 
     }
@@ -619,15 +656,29 @@ public class CameraFragment extends Fragment
         );
     }
 
-    @SuppressLint("SimpleDateFormat")
     private void processDataCollection() {
         long elapsedTimeMS = SystemClock.uptimeMillis() - testStartTime;
         long elapsedTimeS = elapsedTimeMS / 1000;
         long elapsedTimeMin = elapsedTimeS / 60;
-        // Get current folder and path
-        String FILEPATH = currentFolder + File.separator + throughputFileName + experimet_time + ".csv";
+        // Every row of this tick gets the same time
+        long time = ExperimentClock.now();
+        // CPU time and run-queue wait of the inference threads since the last tick
+        threadAccounting.sample();
+        writeThreadData(time);
+
+        // Battery energy of this window, split across the models by their inference time
+        energyAttribution.beginWindow(powerSampler.getEnergyJoules());
+        for (ImageClassifierHelperKotlin currClassifier : imageClassifierHelpers) {
+            energyAttribution.addModel(currClassifier.getIndex(), currClassifier.getInferenceCount(),
+                    currClassifier.getTotalTurnAroundTime());
+        }
+        energyAttribution.endWindow();
 
         for (ImageClassifierHelperKotlin currClassifier : imageClassifierHelpers) {
+            // Close this tick's interval of the latency, period and queue delay statistics
+            statsRow.setLength(0);
+            currClassifier.snapshotStats(statsRow);
+            currClassifier.snapshotStages(telemetryWriter, stageStream, time, stageRow);
             long throughput = currClassifier.getCurrentThroughput();
             long avgThroughput = currClassifier.calculateAverageThroughput();
             long turnAroundTime = currClassifier.calculateAvgTAT();
@@ -637,39 +688,40 @@ public class CameraFragment extends Fragment
             long idleTime = max(0, period - turnAroundTime);
 
             // Write throughput to file
-            try (PrintWriter writer = new PrintWriter(new FileOutputStream(FILEPATH, true))) {
-                dateFormat = new SimpleDateFormat("HH:mm:ss:SSS");
-                String currTime = dateFormat.format(new Date());
-                String relativeTime = getRelativeTime(currTime);
-                String sb = currTime +
-                        ',' +
-                        relativeTime +
-                        ',' +
-                        currClassifier.getIndex() +
-                        ',' +
-                        currClassifier.getCurrentModel() +
-                        ',' +
-                        currClassifier.getCurrentDelegate() +
-                        ',' +
-                        throughput +
-                        ',' +
-                        avgThroughput +
-                        ',' +
-                        currClassifier.getMeasuredTurnAround()+//turnAroundTime +
-                        ',' +
-                        idleTime +
-                        ',' +
-                        averageMeasuredPeriod +
-                        ',' +
-                        measuredPeriod +
-                        ',' +
-                        period +
-                        '\n';
-                writer.write(sb);
-                System.out.println("Elapsed time(s):"+ elapsedTimeS +"  Writing to " + throughputFileName + " done! Models: " + imageClassifierHelpers.size());
-            } catch (FileNotFoundException e) {
-                System.out.println(e.getMessage());
-            }
+            String sb = time +
+                    ',' +
+                    currClassifier.getIndex() +
+                    ',' +
+                    currClassifier.getCurrentModel() +
+                    ',' +
+                    currClassifier.getCurrentDelegate() +
+                    ',' +
+                    throughput +
+                    ',' +
+                    avgThroughput +
+                    ',' +
+                    currClassifier.getMeasuredTurnAround()+//turnAroundTime +
+                    ',' +
+                    idleTime +
+                    ',' +
+                    averageMeasuredPeriod +
+                    ',' +
+                    measuredPeriod +
+                    ',' +
+                    period +
+                    ',' +
+                    threadAccounting.getModelCpuTimeNanos(currClassifier.getIndex()) / 1000000f +
+                    ',' +
+                    threadAccounting.getModelRunQueueWaitNanos(currClassifier.getIndex()) / 1000000f +
+                    ',' +
+                    energyAttribution.getEnergyMillijoules(currClassifier.getIndex()) +
+                    ',' +
+                    energyAttribution.getEnergyPerInferenceMillijoules(currClassifier.getIndex()) +
+                    ',' +
+                    statsRow +
+                    '\n';
+            telemetryWriter.write(throughputStream, sb);
+            System.out.println("Elapsed time(s):"+ elapsedTimeS +"  Writing to " + throughputFileName + " done! Models: " + imageClassifierHelpers.size());
 
             if (elapsedTimeS>10*60 && elapsedTimeS<11*60 && currClassifier.getIndex()==0 && currClassifier.getCurrentTaskPeriod()==11){
                 currClassifier.setCurrentPeriod(5);
@@ -693,14 +745,17 @@ public class CameraFragment extends Fragment
 
     }
 
-    private String getRelativeTime(String currTime) {
-        String[] timeValues = currTime.split(":");
-        Long currTimeLong = Long.parseLong(timeValues[0]) * 3600 +
-                Long.parseLong(timeValues[1]) * 60 +
-                Long.parseLong(timeValues[2]) +
-                Long.parseLong(timeValues[3]) / 1000;
-        long relativeTime = currTimeLong - startTime;
-        return Long.toString(relativeTime);
+    private void writeThreadData(long time) {
+        StringBuilder rows = new StringBuilder();
+        for (int i = 0; i < threadAccounting.getThreadCount(); i++) {
+            rows.append(time).append(',')
+                    .append(threadAccounting.getTid(i)).append(',')
+                    .append(threadAccounting.getModelIndex(i)).append(',')
+                    .append(threadAccounting.getCpuTimeNanos(i) / 1000000f).append(',')
+                    .append(threadAccounting.getRunQueueWaitNanos(i) / 1000000f).append(',')
+                    .append(threadAccounting.getLastCpu(i)).append('\n');
+        }
+        telemetryWriter.write(threadStream, rows);
     }
 
     @Override
@@ -724,11 +779,8 @@ public class CameraFragment extends Fragment
 
     @Override
     public void onResults( long inferenceTime, int modelIndex) {
-        requireActivity().runOnUiThread(() -> {
-            if (modelIndex == 0) {
-
-            }
-        });
+        // Called on the inference threads after every inference. Nothing is shown per result,
+        // so nothing is posted to the UI thread, which allocated a Runnable per inference.
     }
 
 }
@@ -1,29 +1,40 @@
 package org.tensorflow.lite.examples.imageclassification.fragments
 
-import android.graphics.Bitmap
-import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.flow.Flow
-import kotlinx.coroutines.flow.flow
-import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.filter
+import org.tensorflow.lite.examples.imageclassification.FramePool
 
-class DynamicBitmapSource(private val bitmapUpdaterApi: BitmapUpdaterApi) {
+class DynamicBitmapSource(private val framePool: FramePool) {
+    @Volatile
     private var run = false
-    lateinit var bitmapStream: Flow<BitmapUpdaterApi?>
-
-    private fun runStream() {
-        bitmapStream = flow {
-            while (run) {
-                emit(bitmapUpdaterApi);
-            }
-        }.flowOn(Dispatchers.Default)
+
+    // Sequence number of the latest camera frame, 0 before the first. A StateFlow is hot,
+    // conflated and never repeats a value, so every collector suspends until a newer frame is
+    // published, wakes once for it, and one that is still busy only gets the latest frame.
+    private val latestFrame = MutableStateFlow(0L)
+
+    val bitmapStream: Flow<Long> = latestFrame.filter { it != 0L && run }
+
+    // Called by the camera once per frame, after it published the frame to the pool
+    fun publish(sequence: Long) {
+        latestFrame.value = sequence
+    }
+
+    // The latest frame, held until it is released with releaseFrame
+    fun acquireFrame(): FramePool.Frame? {
+        return framePool.acquireLatest()
+    }
+
+    fun releaseFrame(frame: FramePool.Frame) {
+        framePool.release(frame)
     }
 
     fun startStream() {
         run = true
-        runStream()
     }
 
     fun pauseStream() {
         run = false
     }
-}
\ No newline at end of file
+}
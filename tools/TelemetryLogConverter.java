@@ -0,0 +1,272 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Converts a binary telemetry log (Telemetry_Log_*.bin, written by the app's TelemetryLog)
+ * into the CSV files the app used to write on the device, e.g. Performance_Measurements_*.csv
+ * and Raw_Data_*.csv.
+ *
+ * Plain Java without dependencies, run it with:
+ *
+ *   java tools/TelemetryLogConverter.java Telemetry_Log_12_30_00.bin [output directory]
+ *
+ * The CSV layouts are read from the log's header, so logs of any device convert the same way.
+ * The time column is in nanoseconds since the experiment started, whose wall-clock time is
+ * written to an Experiment_Clock file as on the device. Only logs of the current VERSION are
+ * converted.
+ * Logs written through the app's TelemetryJournal are unwrapped first, keeping the frames up
+ * to the first one with a bad length or CRC. A truncated last record is ignored, and damaged
+ * regions of a plain log are skipped up to the next checkpoint.
+ */
+public class TelemetryLogConverter {
+    // Keep in sync with TelemetryLog and TelemetryRing
+    static final byte[] MAGIC = "THMLOG01".getBytes(StandardCharsets.US_ASCII);
+    // Keep in sync with TelemetryJournal
+    static final byte[] JOURNAL_MAGIC = "THMJRNL1".getBytes(StandardCharsets.US_ASCII);
+    static final int JOURNAL_HEADER_SIZE = 16;
+    static final int FRAME_HEADER_SIZE = 8;
+    static final int PADDING = -1;
+    static final int VERSION = 2;
+    static final byte RECORD = 'R';
+    static final byte CHECKPOINT = 'C';
+    static final int CHECKPOINT_SYNC = 0x434b5054;
+    static final int CHECKPOINT_SIZE = 1 + 4 + 8 + 8 + 8;
+    static final int TYPE_LONG = 0;
+    static final int TYPE_DOUBLE = 1;
+    static final int TYPE_FLOAT = 2;
+
+    final ByteBuffer log;
+    int recordSize;
+    int[] types;
+    int[] offsets;
+    String[] names;
+    final LinkedHashMap<String, String> properties = new LinkedHashMap<>();
+    long skippedBytes;
+    // Set after damage, records are only trusted again after the next checkpoint
+    boolean lost;
+
+    TelemetryLogConverter(ByteBuffer log) {
+        this.log = log;
+        readHeader();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java TelemetryLogConverter.java <log.bin> [output directory]");
+            System.exit(1);
+        }
+        File input = new File(args[0]);
+        File outputDir = args.length > 1 ? new File(args[1]) : input.getAbsoluteFile().getParentFile();
+        ByteBuffer log;
+        try (RandomAccessFile file = new RandomAccessFile(input, "r")) {
+            log = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        TelemetryLogConverter converter = new TelemetryLogConverter(unwrapJournal(log));
+        String experimentTime = converter.properties.getOrDefault("experimentTime", "");
+        File clock = new File(outputDir, "Experiment_Clock" + experimentTime + ".csv");
+        converter.writeClock(clock);
+        System.out.println("Wrote the experiment start to " + clock);
+        for (String csv : converter.properties.get("csv.files").split(",")) {
+            File output = new File(outputDir, converter.properties.get("csv." + csv + ".file")
+                    + experimentTime + ".csv");
+            long rows = converter.writeCsv(csv, output);
+            System.out.println("Wrote " + rows + " rows to " + output);
+        }
+        if (converter.skippedBytes > 0) {
+            System.err.println("Skipped " + converter.skippedBytes + " damaged bytes");
+        }
+    }
+
+    // The log stream inside a journal, or the buffer itself if it is a plain log
+    static ByteBuffer unwrapJournal(ByteBuffer file) {
+        byte[] magic = new byte[JOURNAL_MAGIC.length];
+        file.duplicate().get(magic);
+        if (!Arrays.equals(magic, JOURNAL_MAGIC)) return file;
+        int chunkSize = file.getInt(JOURNAL_MAGIC.length + 4);
+
+        ByteBuffer payloads = ByteBuffer.allocate(file.limit());
+        CRC32 crc = new CRC32();
+        int position = JOURNAL_HEADER_SIZE;
+        while (true) {
+            int chunkEnd = (position / chunkSize + 1) * chunkSize;
+            if (chunkEnd - position < FRAME_HEADER_SIZE || position + 4 > file.limit()) {
+                if (chunkEnd >= file.limit()) break;
+                position = chunkEnd;
+                continue;
+            }
+            int length = file.getInt(position);
+            if (length == PADDING) {
+                position = chunkEnd;
+                continue;
+            }
+            if (length <= 0 || position + FRAME_HEADER_SIZE + length > Math.min(chunkEnd, file.limit())) {
+                break;
+            }
+            ByteBuffer payload = file.duplicate();
+            payload.limit(position + FRAME_HEADER_SIZE + length).position(position + FRAME_HEADER_SIZE);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != file.getInt(position + 4)) {
+                System.err.println("Journal damaged at byte " + position + ", the rest is ignored");
+                break;
+            }
+            payloads.put(payload);
+            position += FRAME_HEADER_SIZE + length;
+        }
+        payloads.flip();
+        return payloads;
+    }
+
+    private void readHeader() {
+        byte[] magic = new byte[MAGIC.length];
+        log.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IllegalArgumentException("Not a telemetry log");
+        }
+        int version = log.getInt();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported log version " + version);
+        }
+        recordSize = log.getInt();
+        int columnCount = log.getInt();
+        types = new int[columnCount];
+        offsets = new int[columnCount];
+        names = new String[columnCount];
+        int offset = 1;
+        for (int i = 0; i < columnCount; i++) {
+            types[i] = log.get();
+            names[i] = getString();
+            offsets[i] = offset;
+            offset += types[i] == TYPE_FLOAT ? 4 : 8;
+        }
+        int propertyCount = log.getInt();
+        for (int i = 0; i < propertyCount; i++) {
+            properties.put(getString(), getString());
+        }
+    }
+
+    private String getString() {
+        byte[] bytes = new byte[log.getInt()];
+        log.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Keep in sync with ExperimentClock.clockCsv()
+    void writeClock(File output) throws IOException {
+        String startWallMillis = properties.get("startWallMillis");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(output))) {
+            writer.write("experimentStart,startWallMillis,startElapsedRealtimeNanos\n");
+            writer.write(Instant.ofEpochMilli(Long.parseLong(startWallMillis)) + "," + startWallMillis + ","
+                    + properties.get("startElapsedRealtimeNanos") + '\n');
+        }
+    }
+
+    long writeCsv(String csv, File output) throws IOException {
+        String[] columns = properties.get("csv." + csv + ".columns").split(",");
+        String[] thermalStatusNames = properties.get("thermalStatusNames").split(",");
+        int timeColumn = Arrays.asList(names).indexOf("time");
+        int thermalStatusColumn = Arrays.asList(names).indexOf("thermalStatus");
+
+        long rows = 0;
+        ByteBuffer entries = log.duplicate();
+        skippedBytes = 0;
+        lost = false;
+        StringBuilder row = new StringBuilder();
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(output))) {
+            writer.write(properties.get("csv." + csv + ".header"));
+            writer.write('\n');
+            int record;
+            while ((record = nextRecord(entries)) >= 0) {
+                row.setLength(0);
+                for (int i = 0; i < columns.length; i++) {
+                    if (i > 0) row.append(',');
+                    String column = columns[i];
+                    if (column.equals("time")) {
+                        row.append(entries.getLong(record + offsets[timeColumn]));
+                    } else if (column.equals("thermalStatus")) {
+                        int status = (int) entries.getLong(record + offsets[thermalStatusColumn]);
+                        row.append(status >= 0 && status < thermalStatusNames.length
+                                ? thermalStatusNames[status] : "Unknown");
+                    } else if (column.startsWith("=")) {
+                        row.append(column.substring(1));
+                    } else if (column.startsWith("avg")) {
+                        String[] averaged = column.substring(4).split("#");
+                        float sum = 0f;
+                        for (String index : averaged) {
+                            sum += (float) value(entries, record, Integer.parseInt(index));
+                        }
+                        row.append(sum / averaged.length);
+                    } else {
+                        appendValue(row, entries, record, Integer.parseInt(column.substring(1)));
+                    }
+                }
+                row.append('\n');
+                writer.append(row);
+                rows++;
+            }
+        }
+        return rows;
+    }
+
+    // Position of the next complete record, or -1 at the end of the log
+    private int nextRecord(ByteBuffer entries) {
+        while (entries.hasRemaining()) {
+            int position = entries.position();
+            byte tag = entries.get(position);
+            if (!lost && tag == RECORD && entries.remaining() >= recordSize) {
+                entries.position(position + recordSize);
+                return position;
+            } else if (tag == CHECKPOINT && entries.remaining() >= CHECKPOINT_SIZE
+                    && entries.getInt(position + 1) == CHECKPOINT_SYNC) {
+                entries.position(position + CHECKPOINT_SIZE);
+                lost = false;
+            } else if (!lost && tag == RECORD) {
+                // Cut off at the end, e.g. when the app was killed
+                return -1;
+            } else {
+                // Damaged, move on to the next checkpoint
+                entries.position(position + 1);
+                skippedBytes++;
+                lost = true;
+            }
+        }
+        return -1;
+    }
+
+    private double value(ByteBuffer entries, int record, int column) {
+        int position = record + offsets[column];
+        switch (types[column]) {
+            case TYPE_LONG:
+                return entries.getLong(position);
+            case TYPE_FLOAT:
+                return entries.getFloat(position);
+            default:
+                return entries.getDouble(position);
+        }
+    }
+
+    // Formatted the way the app formats the value on the device
+    private void appendValue(StringBuilder row, ByteBuffer entries, int record, int column) {
+        int position = record + offsets[column];
+        switch (types[column]) {
+            case TYPE_LONG:
+                row.append(entries.getLong(position));
+                break;
+            case TYPE_FLOAT:
+                row.append(entries.getFloat(position));
+                break;
+            default:
+                row.append(entries.getDouble(position));
+        }
+    }
+}